@@ -0,0 +1,162 @@
+package com.datastax.driver.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import com.datastax.driver.core.policies.RetryPolicy;
+
+/**
+ * A prepared statement that was never sent to a cluster; binding it exercises the same codecs as a real one. It lives
+ * in the driver's package to reach the (package-private) constructors of its metadata.
+ */
+public class StubPreparedStatement implements PreparedStatement {
+    private final String query;
+    private final ColumnDefinitions variables;
+    private final PreparedId id;
+
+    /**
+     * @param columns
+     *            alternating names and {@link DataType}s of the bind variables
+     */
+    public StubPreparedStatement(String query, Object... columns) {
+        ColumnDefinitions.Definition[] definitions = new ColumnDefinitions.Definition[columns.length / 2];
+        for (int i = 0; i < definitions.length; i++) {
+            definitions[i] = new ColumnDefinitions.Definition(
+                    "krv_simulation",
+                    "data",
+                    (String) columns[i * 2],
+                    (DataType) columns[i * 2 + 1]);
+        }
+        this.query = query;
+        this.variables = new ColumnDefinitions(definitions, CodecRegistry.DEFAULT_INSTANCE);
+        this.id = new PreparedId(
+                MD5Digest.wrap(query.getBytes(StandardCharsets.UTF_8)),
+                this.variables,
+                new ColumnDefinitions(new ColumnDefinitions.Definition[0], CodecRegistry.DEFAULT_INSTANCE),
+                new int[] { 0 },
+                ProtocolVersion.NEWEST_SUPPORTED);
+    }
+
+    @Override
+    public ColumnDefinitions getVariables() {
+        return this.variables;
+    }
+
+    @Override
+    public BoundStatement bind(Object... values) {
+        return new BoundStatement(this).bind(values);
+    }
+
+    @Override
+    public BoundStatement bind() {
+        return new BoundStatement(this);
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(ByteBuffer routingKey) {
+        return this;
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(ByteBuffer... routingKeyComponents) {
+        return this;
+    }
+
+    @Override
+    public ByteBuffer getRoutingKey() {
+        return null;
+    }
+
+    @Override
+    public PreparedStatement setConsistencyLevel(ConsistencyLevel consistency) {
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getConsistencyLevel() {
+        return null;
+    }
+
+    @Override
+    public PreparedStatement setSerialConsistencyLevel(ConsistencyLevel serialConsistency) {
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getSerialConsistencyLevel() {
+        return null;
+    }
+
+    @Override
+    public String getQueryString() {
+        return this.query;
+    }
+
+    @Override
+    public String getQueryKeyspace() {
+        return "krv_simulation";
+    }
+
+    @Override
+    public PreparedStatement enableTracing() {
+        return this;
+    }
+
+    @Override
+    public PreparedStatement disableTracing() {
+        return this;
+    }
+
+    @Override
+    public boolean isTracing() {
+        return false;
+    }
+
+    @Override
+    public PreparedStatement setRetryPolicy(RetryPolicy policy) {
+        return this;
+    }
+
+    @Override
+    public RetryPolicy getRetryPolicy() {
+        return null;
+    }
+
+    @Override
+    public PreparedId getPreparedId() {
+        return this.id;
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getIncomingPayload() {
+        return null;
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getOutgoingPayload() {
+        return null;
+    }
+
+    @Override
+    public PreparedStatement setOutgoingPayload(Map<String, ByteBuffer> payload) {
+        return this;
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return CodecRegistry.DEFAULT_INSTANCE;
+    }
+
+    @Override
+    public PreparedStatement setIdempotent(Boolean idempotent) {
+        return this;
+    }
+
+    @Override
+    public Boolean isIdempotent() {
+        return null;
+    }
+
+}
@@ -0,0 +1,146 @@
+package org.wikimedia.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * The per-operation costs of the load generator, each in isolation, and end-to-end against a {@link NoopSession} or
+ * {@link MemoryStorage}. Run with {@code -prof gc} for allocation rates; the end-to-end throughput is the generator's
+ * own ceiling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HotPathBenchmark {
+    private static final FutureCallback<Object> IGNORE = new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+        }
+    };
+
+    private int sequence;
+    private ByteBuffer value;
+    private PreparedStatement prepared;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.value = ValueGenerator.sample().next();
+        this.prepared = Futures.getUnchecked(new NoopSession().prepareAsync(
+                "INSERT INTO krv_simulation.data (key,rev,tid,value) VALUES (?,?,now(),?) USING TTL ?"));
+    }
+
+    @State(Scope.Thread)
+    public static class EngineState {
+        @Param({ "async", "threads" })
+        public String engineType;
+
+        Engine engine;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.engine = Engine.create(Engine.Type.parse(this.engineType), new MetricRegistry(), "bench.engine", 64);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.engine.close();
+        }
+    }
+
+    /**
+     * A writer, to storage that does nothing with each write ({@code noop}), or keeps it in memory. Both are created
+     * afresh for each iteration, so that the memory storage (which the writer only adds to) doesn't grow from one to
+     * the next, leaving the score to its growth and garbage collection.
+     */
+    @State(Scope.Thread)
+    public static class WriterState {
+        @Param({ "async", "threads" })
+        public String engineType;
+
+        @Param({ "noop", "memory" })
+        public String storageType;
+
+        Storage storage;
+        Writer writer;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws Exception {
+            MetricRegistry metrics = new MetricRegistry();
+            this.storage = this.storageType.equals("memory") ? new MemoryStorage() : new NoopSession();
+            this.writer = new Writer(
+                    metrics,
+                    this.storage,
+                    Engine.create(Engine.Type.parse(this.engineType), metrics, "bench.writer", 64),
+                    Pacer.unthrottled(),
+                    Distribution.parse("sequential", 1000),
+                    0,
+                    Integer.MAX_VALUE,
+                    0,
+                    10,
+                    ValueGenerator.sample(),
+                    new TtlPolicy(60, 0),
+                    1,
+                    0,
+                    1);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws Exception {
+            this.writer.engine.close();
+            this.storage.close();
+        }
+    }
+
+    @Benchmark
+    public String keyNameFormat() {
+        return String.format("key_%d", this.sequence++ % 1000);
+    }
+
+    @Benchmark
+    public String keyName() {
+        return Writer.keyName(this.sequence++ % 1000);
+    }
+
+    @Benchmark
+    public BoundStatement bind() {
+        return this.prepared.bind(Writer.keyName(this.sequence++ % 1000), 1, this.value, 60);
+    }
+
+    @Benchmark
+    public void engineSubmit(EngineState state) {
+        state.engine.submit(() -> Futures.immediateFuture(null), IGNORE);
+    }
+
+    @Benchmark
+    public void writerIssue(WriterState state) {
+        state.writer.issue(this.sequence++, System.nanoTime());
+    }
+
+}
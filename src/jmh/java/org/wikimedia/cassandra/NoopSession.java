@@ -0,0 +1,77 @@
+package org.wikimedia.cassandra;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.StubPreparedStatement;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A session that completes every request immediately, without a result, so that only the client's own overhead is
+ * measured.
+ */
+class NoopSession extends CassandraSession {
+
+    @Override
+    public ResultSetFuture executeAsync(Statement statement) {
+        return new Completed();
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(String query) {
+        if (query.contains("now()")) {
+            // Writer
+            return Futures.immediateFuture(new StubPreparedStatement(
+                    query,
+                    "key",
+                    DataType.text(),
+                    "rev",
+                    DataType.cint(),
+                    "value",
+                    DataType.blob(),
+                    "[ttl]",
+                    DataType.cint()));
+        }
+        if (query.startsWith("INSERT")) {
+            return Futures.immediateFuture(new StubPreparedStatement(
+                    query,
+                    "key",
+                    DataType.text(),
+                    "rev",
+                    DataType.cint(),
+                    "tid",
+                    DataType.timeuuid(),
+                    "value",
+                    DataType.blob(),
+                    "[ttl]",
+                    DataType.cint()));
+        }
+        throw new UnsupportedOperationException(query);
+    }
+
+    private static class Completed extends AbstractFuture<ResultSet> implements ResultSetFuture {
+        Completed() {
+            set(null);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            return null;
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, java.util.concurrent.TimeUnit unit) {
+            return null;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+    }
+
+}
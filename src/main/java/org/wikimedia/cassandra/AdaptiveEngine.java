@@ -0,0 +1,307 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.QueryExecutionException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link Engine} that adjusts its concurrency during a run, looking for the most that keeps a latency percentile
+ * within a target (for example, p99 under 50ms). Requests are issued to another engine, whose concurrency is the
+ * ceiling.
+ * <p>
+ * Each window (of at least {@link #MIN_SAMPLES} requests and {@link #WINDOW_NANOS}), the percentile of the window's
+ * service latencies is compared to the target: with {@link Algorithm#AIMD}, the limit grows by one while within it,
+ * and otherwise shrinks by {@link #BACKOFF}; with {@link Algorithm#GRADIENT}, the limit is scaled by the ratio of the
+ * target to the percentile (growing by its square root while within it), smoothed. Timeouts, and no hosts being
+ * available, shrink the limit by {@link #BACKOFF} regardless of latency.
+ * <p>
+ * Each window's limit, percentile and throughput are logged to {@code org.wikimedia.cassandra.concurrency}; the limit
+ * and the throughput sustained within the target are registered as {@code <name>.concurrency.limit} and
+ * {@code <name>.concurrency.sustained}, and are summarized when the engine is closed.
+ */
+public class AdaptiveEngine implements Engine {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveEngine.class);
+    private static final Logger TRACE = LoggerFactory
+            .getLogger(name(AdaptiveEngine.class.getPackage().getName(), "concurrency"));
+
+    static final int MIN_SAMPLES = 100;
+    static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final double BACKOFF = 0.9;
+    static final double SMOOTHING = 0.2;
+
+    enum Algorithm {
+        /** Additive increase, multiplicative decrease. */
+        AIMD,
+        /** Proportional to how far the percentile is from the target (after Vegas, and gradient limiters). */
+        GRADIENT;
+
+        static Algorithm parse(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    private final Engine engine;
+    private final Algorithm algorithm;
+    private final int ceiling;
+    private final long targetNanos;
+    private final double percentile;
+    private final Limit permits;
+    private final Recorder latencies = new Recorder(3);
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong overloads = new AtomicLong();
+    private final AtomicBoolean adjusting = new AtomicBoolean();
+    private final long started = System.nanoTime();
+
+    // Guarded by adjusting
+    private Histogram window;
+    private volatile long windowStart = System.nanoTime();
+    private double estimate;
+    private volatile int limit;
+    private long withinCompleted;
+    private long withinNanos;
+    private double withinLimitNanos;
+
+    /**
+     * @param engine
+     *            the engine requests are issued to; its concurrency is the ceiling of this one's
+     * @param ceiling
+     *            the concurrency of {@code engine}
+     * @param targetMillis
+     *            the latency target
+     * @param percentile
+     *            the percentile of latencies held to the target, for example 99
+     */
+    public AdaptiveEngine(
+            MetricRegistry metrics,
+            String name,
+            Engine engine,
+            int ceiling,
+            Algorithm algorithm,
+            double targetMillis,
+            double percentile) {
+        checkArgument(targetMillis > 0, "Latency target must be greater than zero");
+        checkArgument(percentile > 0 && percentile <= 100, "Percentile must be in (0, 100]");
+        this.engine = engine;
+        this.algorithm = algorithm;
+        this.ceiling = ceiling;
+        this.targetNanos = (long) (targetMillis * 1e6);
+        this.percentile = percentile;
+        this.limit = Math.max(1, ceiling / 10);
+        this.estimate = this.limit;
+        this.permits = new Limit(this.limit);
+
+        metrics.register(name(name, "concurrency", "limit"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return limit;
+            }
+        });
+        metrics.register(name(name, "concurrency", "sustained"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return sustained();
+            }
+        });
+    }
+
+    @Override
+    public <T> void submit(Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+        submit(null, operation, callback);
+    }
+
+    @Override
+    public <T> void submit(String key, Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+        this.permits.acquireUninterruptibly();
+        Timed<T> timed = new Timed<>(operation, callback);
+        this.engine.submit(key, timed, timed);
+    }
+
+    @Override
+    public int inFlight() {
+        return this.engine.inFlight();
+    }
+
+    @Override
+    public void close() {
+        this.engine.close();
+        synchronized (this) {
+            double seconds = (System.nanoTime() - this.started) / 1e9;
+            if (this.withinNanos == 0) {
+                LOG.warn("Latency target (p{} <= {}ms) was never met", percentileName(), this.targetNanos / 1e6);
+                return;
+            }
+            LOG.info(
+                    String.format(
+                            "Sustained %.1f ops/s within p%s <= %sms, at an average concurrency of %.1f "
+                                    + "(%.1fs of %.1fs)",
+                            sustained(),
+                            percentileName(),
+                            this.targetNanos / 1e6,
+                            this.withinLimitNanos / this.withinNanos,
+                            this.withinNanos / 1e9,
+                            seconds));
+        }
+    }
+
+    /** Returns the throughput of the windows that were within the latency target. */
+    private synchronized double sustained() {
+        return this.withinNanos > 0 ? this.withinCompleted / (this.withinNanos / 1e9) : 0;
+    }
+
+    private void completed(long startNanos, Throwable failure) {
+        if (failure == null) {
+            this.latencies.recordValue(Math.max(0, System.nanoTime() - startNanos));
+        }
+        else if (overloaded(failure)) {
+            this.overloads.incrementAndGet();
+        }
+        this.completed.incrementAndGet();
+        this.permits.release();
+
+        long now = System.nanoTime();
+        if (now - this.windowStart < WINDOW_NANOS || !this.adjusting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (this.completed.get() >= MIN_SAMPLES || this.overloads.get() > 0) {
+                adjust(now);
+            }
+        }
+        finally {
+            this.adjusting.set(false);
+        }
+    }
+
+    private void adjust(long now) {
+        this.window = this.latencies.getIntervalHistogram(this.window);
+        long completed = this.completed.getAndSet(0);
+        long overloads = this.overloads.getAndSet(0);
+        long elapsed = now - this.windowStart;
+        this.windowStart = now;
+
+        long latency = this.window.getTotalCount() > 0 ? this.window.getValueAtPercentile(this.percentile) : 0;
+        boolean within = overloads == 0 && this.window.getTotalCount() > 0 && latency <= this.targetNanos;
+        if (within) {
+            synchronized (this) {
+                this.withinCompleted += completed;
+                this.withinNanos += elapsed;
+                this.withinLimitNanos += (double) this.limit * elapsed;
+            }
+        }
+
+        if (overloads > 0) {
+            this.estimate *= BACKOFF;
+        }
+        else if (this.algorithm == Algorithm.AIMD) {
+            this.estimate = within ? this.estimate + 1 : this.estimate * BACKOFF;
+        }
+        else {
+            double gradient = Math.max(0.5, Math.min(1.0, (double) this.targetNanos / Math.max(1, latency)));
+            double target = this.estimate * gradient + (gradient >= 1.0 ? Math.sqrt(this.estimate) : 0);
+            this.estimate = this.estimate * (1 - SMOOTHING) + target * SMOOTHING;
+        }
+        this.estimate = Math.max(1, Math.min(this.ceiling, this.estimate));
+
+        int previous = this.limit;
+        this.limit = (int) Math.round(this.estimate);
+        this.permits.resize(previous, this.limit);
+        TRACE.info(
+                String.format(
+                        "limit=%d, previous=%d, p%s=%.3f, throughput=%.1f, overloads=%d, within_target=%s",
+                        this.limit,
+                        previous,
+                        percentileName(),
+                        latency / 1e6,
+                        completed / (elapsed / 1e9),
+                        overloads,
+                        within));
+    }
+
+    private String percentileName() {
+        return this.percentile == Math.rint(this.percentile)
+                ? String.valueOf((long) this.percentile)
+                : String.valueOf(this.percentile);
+    }
+
+    /** True for failures that indicate the cluster is overloaded: timeouts, unavailability, and no hosts. */
+    static boolean overloaded(Throwable t) {
+        return t instanceof NoHostAvailableException
+                || t instanceof QueryExecutionException
+                || t instanceof OperationTimedOutException;
+    }
+
+    /** Times an operation from when it is issued, and returns its permit once it completes. */
+    private class Timed<T> implements Supplier<ListenableFuture<T>>, FutureCallback<T> {
+        private final Supplier<ListenableFuture<T>> operation;
+        private final FutureCallback<? super T> callback;
+        private long start;
+
+        Timed(Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+            this.operation = operation;
+            this.callback = callback;
+        }
+
+        @Override
+        public ListenableFuture<T> get() {
+            this.start = System.nanoTime();
+            return this.operation.get();
+        }
+
+        @Override
+        public void onSuccess(T result) {
+            try {
+                this.callback.onSuccess(result);
+            }
+            finally {
+                completed(this.start, null);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            try {
+                this.callback.onFailure(t);
+            }
+            finally {
+                completed(this.start, t);
+            }
+        }
+    }
+
+    /** A semaphore whose permits can be reduced below those currently held. */
+    private static class Limit extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Limit(int permits) {
+            super(permits);
+        }
+
+        void resize(int from, int to) {
+            if (to > from) {
+                release(to - from);
+            }
+            else if (to < from) {
+                reducePermits(from - to);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link Engine} that issues requests without blocking, and uses a semaphore to cap those in flight. A handful of
+ * threads (the caller, and the driver's I/O threads) can sustain thousands of concurrent requests this way.
+ */
+public class AsyncEngine implements Engine {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncEngine.class);
+
+    private final int concurrency;
+    private final Semaphore permits;
+
+    public AsyncEngine(MetricRegistry metrics, String name, int concurrency) {
+        this.concurrency = concurrency;
+        this.permits = new Semaphore(concurrency);
+
+        metrics.register(name(name, "inflight"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return inFlight();
+            }
+        });
+    }
+
+    @Override
+    public <T> void submit(Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+        this.permits.acquireUninterruptibly();
+
+        ListenableFuture<T> future;
+        try {
+            future = operation.get();
+        }
+        catch (RuntimeException e) {
+            this.permits.release();
+            callback.onFailure(e);
+            return;
+        }
+
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                try {
+                    callback.onSuccess(result);
+                }
+                finally {
+                    permits.release();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                try {
+                    callback.onFailure(t);
+                }
+                finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    public int inFlight() {
+        return this.concurrency - this.permits.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        try {
+            // Block until all permits have been returned, or the timeout has expired.
+            long timeout = Engine.shutdownTimeout(this.concurrency);
+            if (!this.permits.tryAcquire(this.concurrency, timeout, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for {} in-flight requests!", inFlight());
+                return;
+            }
+            // Nothing is in flight any longer
+            this.permits.release(this.concurrency);
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for in-flight requests", e);
+        }
+    }
+
+}
@@ -1,35 +1,502 @@
 package org.wikimedia.cassandra;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PerHostPercentileTracker;
+import com.datastax.driver.core.PoolingOptions;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.QueryTrace;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SocketOptions;
 import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LatencyAwarePolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.NoSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.PercentileSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
-public class CassandraSession implements AutoCloseable {
+/**
+ * {@link Storage} in a Cassandra cluster. Each shape of statement is prepared (asynchronously) the first time it is
+ * needed, and then cached. Statements are idempotent (and so may be speculatively executed), except inserts that
+ * generate their tid with {@code now()}.
+ * <p>
+ * The driver's own metrics are registered as {@code CassandraSession.driver.*}, and the connection pool of each host
+ * as {@code CassandraSession.pool.<host>.*}: open connections, in-flight requests, in-flight requests per connection,
+ * and saturation (in-flight requests, as a fraction of the most the open connections allow).
+ */
+public class CassandraSession implements Storage {
     public static final String KEYSPACE = "krv_simulation";
     public static final String TABLE = "data";
 
+    private static final String INSERT = String
+            .format("INSERT INTO %s.%s (key,rev,tid,value) VALUES (?,?,?,?) USING TTL ?", KEYSPACE, TABLE);
+    private static final String INSERT_NOW = String
+            .format("INSERT INTO %s.%s (key,rev,tid,value) VALUES (?,?,now(),?) USING TTL ?", KEYSPACE, TABLE);
+    // Cassandra 3.x: "Read 1 live rows and 2 tombstone cells"; 2.x: "Read 1 live and 2 tombstone cells"
+    private static final Pattern READ = Pattern.compile("Read (\\d+) live (?:rows )?and (\\d+) tombstone cells");
+
     private final Cluster cluster;
+    private final ConcurrentMap<String, ListenableFuture<PreparedStatement>> statements = new ConcurrentHashMap<>();
 
     private Session session;
 
-    public CassandraSession(String...contacts) {
-        this.cluster = Cluster.builder().addContactPoints(contacts).build();
+    /** For in-process sessions (fakes, benchmarks), which override the methods that would reach the cluster. */
+    protected CassandraSession() {
+        this.cluster = null;
+    }
+
+    public CassandraSession(MetricRegistry metrics, Options options, String...contacts) {
+        this.cluster = options.apply(Cluster.builder().addContactPoints(contacts)).build();
         this.session = this.cluster.connect();
+
+        metrics.register(name(CassandraSession.class, "driver"), this.cluster.getMetrics().getRegistry());
+        for (Host host : this.cluster.getMetadata().getAllHosts()) {
+            registerPool(metrics, host);
+        }
+    }
+
+    private void registerPool(MetricRegistry metrics, Host host) {
+        String prefix = name(CassandraSession.class, "pool", host.getAddress().getHostAddress().replace('.', '_'));
+        metrics.register(name(prefix, "connections"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return session.getState().getOpenConnections(host);
+            }
+        });
+        metrics.register(name(prefix, "inflight"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return session.getState().getInFlightQueries(host);
+            }
+        });
+        metrics.register(name(prefix, "inflight-per-connection"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                Session.State state = session.getState();
+                int connections = state.getOpenConnections(host);
+                return connections > 0 ? (double) state.getInFlightQueries(host) / connections : 0;
+            }
+        });
+        metrics.register(name(prefix, "saturation"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                Session.State state = session.getState();
+                HostDistance distance = cluster
+                        .getConfiguration()
+                        .getPolicies()
+                        .getLoadBalancingPolicy()
+                        .distance(host);
+                int capacity = state.getOpenConnections(host) * cluster
+                        .getConfiguration()
+                        .getPoolingOptions()
+                        .getMaxRequestsPerConnection(distance);
+                return capacity > 0 ? (double) state.getInFlightQueries(host) / capacity : 0;
+            }
+        });
+    }
+
+    public ResultSetFuture executeAsync(Statement statement) {
+        return this.session.executeAsync(statement);
+    }
+
+    public ListenableFuture<PreparedStatement> prepareAsync(String query) {
+        return this.session.prepareAsync(query);
+    }
+
+    public Metadata metadata() {
+        return this.cluster.getMetadata();
+    }
+
+    @Override
+    public ListenableFuture<Void> write(Cell cell) {
+        return done(execute(insert(cell), prepared -> bind(prepared, cell)));
+    }
+
+    @Override
+    public ListenableFuture<Void> write(List<Cell> cells) {
+        String query = insert(cells.get(0));
+        for (Cell cell : cells) {
+            if (!insert(cell).equals(query)) {
+                // Mixed shapes (with and without tids) are written separately
+                List<ListenableFuture<Void>> writes = new ArrayList<>(cells.size());
+                for (Cell each : cells) {
+                    writes.add(write(each));
+                }
+                return done(Futures.allAsList(writes));
+            }
+        }
+        return done(execute(query, prepared -> {
+            BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            for (Cell cell : cells) {
+                batch.add(bind(prepared, cell));
+            }
+            return batch;
+        }));
     }
 
-    public ResultSet execute(Statement statement) {
-        return this.session.execute(statement);
+    @Override
+    public ListenableFuture<Storage.Page> read(Slice slice) {
+        StringBuilder query = new StringBuilder("SELECT rev,tid,TTL(value) AS expiry");
+        if (slice.values) {
+            query.append(",value");
+        }
+        query.append(" FROM ").append(KEYSPACE).append('.').append(TABLE).append(" WHERE ").append(where(slice));
+        if (slice.latestRenders) {
+            // The first row of each group is the latest render, since tid is clustered DESC.
+            query.append(" GROUP BY key,rev");
+        }
+        if (slice.limit > 0) {
+            query.append(" LIMIT ?");
+        }
+
+        ListenableFuture<ResultSet> results = execute(query.toString(), prepared -> {
+            List<Object> values = values(slice);
+            if (slice.limit > 0) {
+                values.add(slice.limit);
+            }
+            Statement statement = prepared.bind(values.toArray());
+            if (slice.fetchSize > 0) {
+                statement.setFetchSize(slice.fetchSize);
+            }
+            if (slice.traced) {
+                statement.enableTracing();
+            }
+            return statement;
+        });
+        return Futures.transform(
+                results,
+                (AsyncFunction<ResultSet, Storage.Page>) page -> Futures.immediateFuture(new Page(slice, page)));
     }
 
-    public PreparedStatement prepare(String query) {
-        return this.session.prepare(query);
+    @Override
+    public ListenableFuture<Void> delete(Slice slice) {
+        String query = String.format("DELETE FROM %s.%s WHERE %s", KEYSPACE, TABLE, where(slice));
+        return done(execute(query, prepared -> prepared.bind(values(slice).toArray())));
     }
 
     @Override
     public void close() throws Exception {
-        cluster.close();
+        if (this.cluster != null) {
+            this.cluster.close();
+        }
+    }
+
+    ListenableFuture<ResultSet> execute(String query, Function<PreparedStatement, Statement> bind) {
+        return Futures.transform(
+                prepared(query),
+                (AsyncFunction<PreparedStatement, ResultSet>) prepared -> {
+                    Statement statement = bind.apply(prepared);
+                    statement.setIdempotent(!query.equals(INSERT_NOW));
+                    return executeAsync(statement);
+                });
+    }
+
+    private ListenableFuture<PreparedStatement> prepared(String query) {
+        ListenableFuture<PreparedStatement> prepared = this.statements.get(query);
+        if (prepared != null) {
+            return prepared;
+        }
+
+        ListenableFuture<PreparedStatement> preparing = prepareAsync(query);
+        prepared = this.statements.putIfAbsent(query, preparing);
+        if (prepared != null) {
+            return prepared;
+        }
+        Futures.addCallback(preparing, new FutureCallback<PreparedStatement>() {
+            @Override
+            public void onSuccess(PreparedStatement result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Try again next time
+                CassandraSession.this.statements.remove(query, preparing);
+            }
+        });
+        return preparing;
+    }
+
+    private static String insert(Cell cell) {
+        return cell.tid() != null ? INSERT : INSERT_NOW;
+    }
+
+    private static Statement bind(PreparedStatement prepared, Cell cell) {
+        if (cell.tid() != null) {
+            return prepared.bind(cell.key(), cell.rev(), cell.tid(), cell.value(), cell.ttl());
+        }
+        return prepared.bind(cell.key(), cell.rev(), cell.value(), cell.ttl());
+    }
+
+    static String where(Slice slice) {
+        StringBuilder where = new StringBuilder("key=?");
+        if (slice.rev != null) {
+            where.append(" AND rev=?");
+        }
+        if (slice.revBefore != null) {
+            where.append(" AND rev<?");
+        }
+        if (slice.tid != null) {
+            where.append(" AND tid=?");
+        }
+        if (slice.tidBefore != null) {
+            where.append(" AND tid<?");
+        }
+        return where.toString();
+    }
+
+    static List<Object> values(Slice slice) {
+        List<Object> values = new ArrayList<>(5);
+        values.add(slice.key);
+        for (Object value : new Object[] { slice.rev, slice.revBefore, slice.tid, slice.tidBefore }) {
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private static <T> ListenableFuture<Void> done(ListenableFuture<T> future) {
+        return Futures.transform(future, (AsyncFunction<T, Void>) result -> Futures.immediateFuture(null));
+    }
+
+    /** A page of results, as fetched so far by the driver. */
+    private class Page implements Storage.Page {
+        private final Slice slice;
+        private final ResultSet results;
+        private final List<Cell> cells;
+
+        Page(Slice slice, ResultSet results) {
+            this.slice = slice;
+            this.results = results;
+            if (results == null) {
+                this.cells = Collections.emptyList();
+                return;
+            }
+            this.cells = new ArrayList<>(results.getAvailableWithoutFetching());
+            for (int i = results.getAvailableWithoutFetching(); i > 0; i--) {
+                Row row = results.one();
+                this.cells.add(new Cell(
+                        slice.key,
+                        row.getInt("rev"),
+                        row.getUUID("tid"),
+                        slice.values ? row.getBytes("value") : null,
+                        row.isNull("expiry") ? 0 : row.getInt("expiry")));
+            }
+        }
+
+        @Override
+        public List<Cell> cells() {
+            return this.cells;
+        }
+
+        @Override
+        public boolean isLast() {
+            return this.results == null || this.results.isFullyFetched();
+        }
+
+        @Override
+        public ListenableFuture<Storage.Page> next() {
+            return Futures.transform(
+                    this.results.fetchMoreResults(),
+                    (AsyncFunction<ResultSet, Storage.Page>) more -> Futures
+                            .immediateFuture(new Page(this.slice, more)));
+        }
+
+        @Override
+        public Trace trace() {
+            if (!this.slice.traced || this.results == null) {
+                return null;
+            }
+            QueryTrace trace = this.results.getExecutionInfo().getQueryTrace();
+            long live = 0;
+            long tombstones = 0;
+            for (QueryTrace.Event event : trace.getEvents()) {
+                Matcher matcher = READ.matcher(event.getDescription());
+                if (matcher.find()) {
+                    live += Long.parseLong(matcher.group(1));
+                    tombstones += Long.parseLong(matcher.group(2));
+                }
+            }
+            return new Trace(live, tombstones);
+        }
+    }
+
+    /** Connection, pooling and query options of the driver; those left unset keep the driver's defaults. */
+    public static class Options {
+        int port = ProtocolOptions.DEFAULT_PORT;
+        Integer coreConnections;
+        Integer maxConnections;
+        Integer maxRequestsPerConnection;
+        ProtocolOptions.Compression compression = ProtocolOptions.Compression.NONE;
+        Integer connectTimeoutMillis;
+        Integer readTimeoutMillis;
+        Integer fetchSize;
+        String loadBalancing = "token-aware";
+        String localDc;
+        String speculativeExecution = "none";
+
+        public Options port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /** Connections per host, as {@code CORE[..MAX]}. */
+        public Options connections(String connections) {
+            if (connections == null) {
+                return this;
+            }
+            String[] range = connections.split("\\.\\.", 2);
+            this.coreConnections = Integer.parseInt(range[0]);
+            this.maxConnections = range.length > 1 ? Integer.parseInt(range[1]) : this.coreConnections;
+            checkArgument(
+                    this.coreConnections > 0 && this.maxConnections >= this.coreConnections,
+                    "Invalid connections per host: %s",
+                    connections);
+            return this;
+        }
+
+        public Options maxRequestsPerConnection(Integer maxRequests) {
+            this.maxRequestsPerConnection = maxRequests;
+            return this;
+        }
+
+        /** Protocol compression, one of none, lz4, or snappy. */
+        public Options compression(String compression) {
+            this.compression = ProtocolOptions.Compression.valueOf(compression.toUpperCase());
+            return this;
+        }
+
+        public Options connectTimeoutMillis(Integer millis) {
+            this.connectTimeoutMillis = millis;
+            return this;
+        }
+
+        public Options readTimeoutMillis(Integer millis) {
+            this.readTimeoutMillis = millis;
+            return this;
+        }
+
+        /** The default page size of reads (those of a {@link Slice} with a fetch size use its own). */
+        public Options fetchSize(Integer fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        /** Load balancing, one of token-aware, latency-aware (and token-aware), or round-robin. */
+        public Options loadBalancing(String policy, String localDc) {
+            this.loadBalancing = policy;
+            this.localDc = localDc;
+            policy();
+            return this;
+        }
+
+        /** Speculative execution, one of none, constant:DELAY_MS[:MAX], or percentile:PERCENTILE[:MAX]. */
+        public Options speculativeExecution(String policy) {
+            this.speculativeExecution = policy;
+            speculation();
+            return this;
+        }
+
+        Cluster.Builder apply(Cluster.Builder builder) {
+            PoolingOptions pooling = new PoolingOptions();
+            for (HostDistance distance : new HostDistance[] { HostDistance.LOCAL, HostDistance.REMOTE }) {
+                if (this.coreConnections != null) {
+                    pooling.setConnectionsPerHost(distance, this.coreConnections, this.maxConnections);
+                }
+                if (this.maxRequestsPerConnection != null) {
+                    pooling.setMaxRequestsPerConnection(distance, this.maxRequestsPerConnection);
+                }
+            }
+
+            SocketOptions socket = new SocketOptions();
+            if (this.connectTimeoutMillis != null) {
+                socket.setConnectTimeoutMillis(this.connectTimeoutMillis);
+            }
+            if (this.readTimeoutMillis != null) {
+                socket.setReadTimeoutMillis(this.readTimeoutMillis);
+            }
+
+            QueryOptions query = new QueryOptions();
+            if (this.fetchSize != null) {
+                query.setFetchSize(this.fetchSize);
+            }
+
+            return builder
+                    .withPort(this.port)
+                    .withPoolingOptions(pooling)
+                    .withCompression(this.compression)
+                    .withSocketOptions(socket)
+                    .withQueryOptions(query)
+                    .withLoadBalancingPolicy(policy())
+                    .withSpeculativeExecutionPolicy(speculation());
+        }
+
+        private LoadBalancingPolicy policy() {
+            DCAwareRoundRobinPolicy.Builder dcAware = DCAwareRoundRobinPolicy.builder();
+            if (this.localDc != null) {
+                dcAware.withLocalDc(this.localDc);
+            }
+            switch (this.loadBalancing) {
+                case "token-aware":
+                    return new TokenAwarePolicy(dcAware.build());
+                case "latency-aware":
+                    return new TokenAwarePolicy(LatencyAwarePolicy.builder(dcAware.build()).build());
+                case "round-robin":
+                    return this.localDc != null ? dcAware.build() : new RoundRobinPolicy();
+                default:
+                    throw new IllegalArgumentException("Unknown load balancing policy: " + this.loadBalancing);
+            }
+        }
+
+        private SpeculativeExecutionPolicy speculation() {
+            String[] parts = this.speculativeExecution.split(":");
+            int max = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+            switch (parts[0]) {
+                case "none":
+                    return NoSpeculativeExecutionPolicy.INSTANCE;
+                case "constant":
+                    checkArgument(parts.length > 1, "A delay is required: constant:DELAY_MS[:MAX]");
+                    return new ConstantSpeculativeExecutionPolicy(Long.parseLong(parts[1]), max);
+                case "percentile":
+                    checkArgument(parts.length > 1, "A percentile is required: percentile:PERCENTILE[:MAX]");
+                    return new PercentileSpeculativeExecutionPolicy(
+                            PerHostPercentileTracker.builder(15000).build(),
+                            Double.parseDouble(parts[1]),
+                            max);
+                default:
+                    throw new IllegalArgumentException("Unknown speculative execution: " + this.speculativeExecution);
+            }
+        }
     }
 
 }
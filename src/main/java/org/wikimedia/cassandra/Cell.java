@@ -0,0 +1,56 @@
+package org.wikimedia.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import com.datastax.driver.core.utils.UUIDs;
+
+/**
+ * One render of a revision: the value at ({@code key}, {@code rev}, {@code tid}), and its TTL in seconds (0 is none).
+ * When written, a null {@code tid} is assigned by the storage (like {@code now()}); when read, {@code value} is null
+ * unless the slice selected values, and {@code ttl} is the time remaining.
+ */
+public class Cell {
+    private final String key;
+    private final int rev;
+    private final UUID tid;
+    private final ByteBuffer value;
+    private final int ttl;
+
+    public Cell(String key, int rev, UUID tid, ByteBuffer value, int ttl) {
+        this.key = key;
+        this.rev = rev;
+        this.tid = tid;
+        this.value = value;
+        this.ttl = ttl;
+    }
+
+    public String key() {
+        return this.key;
+    }
+
+    public int rev() {
+        return this.rev;
+    }
+
+    public UUID tid() {
+        return this.tid;
+    }
+
+    public ByteBuffer value() {
+        return this.value;
+    }
+
+    public int ttl() {
+        return this.ttl;
+    }
+
+    /** Returns this cell if it has a tid, and otherwise a copy with a (time-based) one, assigned here. */
+    public Cell identified() {
+        if (this.tid != null) {
+            return this;
+        }
+        return new Cell(this.key, this.rev, UUIDs.timeBased(), this.value, this.ttl);
+    }
+
+}
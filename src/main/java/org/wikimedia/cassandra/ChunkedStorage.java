@@ -0,0 +1,509 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * {@link Storage} that splits values into chunks of (at most) {@code chunkSize} bytes, in the companion table
+ * {@code krv_simulation.chunks} of {@code schema.cql}, keyed by ({@code key}, {@code rev}, {@code tid}, {@code chunk}).
+ * The data table holds a small manifest in place of each value: its length, and the size of its chunks.
+ * <p>
+ * The chunks of a value are written, and read, up to {@code concurrency} at a time; the manifest is written once all
+ * of them have been, so that readers never find a manifest without its chunks. Reads copy each chunk into a direct
+ * buffer from a pool as it arrives, so no more than a few chunks of a value are on the heap at once, and the values of
+ * a page are assembled one at a time; callers return the buffers with {@link Storage.Page#release()}. Values with
+ * chunks missing (expired, or deleted) are left out of their page, and counted as {@link Storage.Page#dropped()}.
+ * Deletions apply to both tables, which share a clustering prefix. Values in the data table that are not manifests
+ * (written without chunking) are read as they are.
+ * <p>
+ * Direct memory, in use or pooled, is held to half the maximum heap (the JVM's default {@code MaxDirectMemorySize}
+ * is the maximum heap); values beyond that, with many large values in flight, are assembled on the heap instead.
+ * <p>
+ * Chunk requests are registered as {@code ChunkedStorage.chunks.writes} and {@code ChunkedStorage.chunks.reads}, and
+ * the pool as {@code ChunkedStorage.buffers.pooled} and {@code ChunkedStorage.buffers.outstanding} (bytes, free and in
+ * use), {@code ChunkedStorage.buffers.allocated}, and {@code ChunkedStorage.buffers.overflowed} (heap buffers).
+ */
+public class ChunkedStorage implements Storage {
+    public static final String TABLE = "chunks";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedStorage.class);
+    /** "KRVC", followed by the length of the value and the size of its chunks. */
+    static final int MANIFEST_MAGIC = 0x4b525643;
+    static final int MANIFEST_SIZE = 12;
+    /** Most bytes of free buffers kept for reuse. */
+    static final long POOL_BYTES = 256L * 1024 * 1024;
+    /** Most bytes of direct buffers, free or in use. */
+    static final long DIRECT_BYTES = Runtime.getRuntime().maxMemory() / 2;
+
+    private static final String INSERT = String.format(
+            "INSERT INTO %s.%s (key,rev,tid,chunk,value) VALUES (?,?,?,?,?) USING TTL ?",
+            CassandraSession.KEYSPACE,
+            TABLE);
+    private static final String SELECT = String.format(
+            "SELECT value FROM %s.%s WHERE key=? AND rev=? AND tid=? AND chunk=?",
+            CassandraSession.KEYSPACE,
+            TABLE);
+
+    private final CassandraSession session;
+    private final int chunkSize;
+    private final int concurrency;
+    private final Pool buffers;
+    private final OperationMetrics writes;
+    private final OperationMetrics reads;
+
+    /**
+     * @param session
+     *            the cluster's session
+     * @param chunkSize
+     *            the most bytes in each chunk of a value
+     * @param concurrency
+     *            the most chunks of each value written, or read, at once
+     */
+    public ChunkedStorage(MetricRegistry metrics, CassandraSession session, int chunkSize, int concurrency) {
+        checkArgument(chunkSize > 0, "Chunk size must be greater than zero");
+        checkArgument(concurrency > 0, "Chunk concurrency must be greater than zero");
+        this.session = checkNotNull(session);
+        this.chunkSize = chunkSize;
+        this.concurrency = concurrency;
+        this.buffers = new Pool(
+                chunkSize,
+                Math.min(POOL_BYTES, DIRECT_BYTES / 2),
+                DIRECT_BYTES,
+                metrics.meter(name(ChunkedStorage.class, "buffers", "allocated")),
+                metrics.meter(name(ChunkedStorage.class, "buffers", "overflowed")));
+        this.writes = new OperationMetrics(metrics, name(ChunkedStorage.class, "chunks", "writes"), LOG);
+        this.reads = new OperationMetrics(metrics, name(ChunkedStorage.class, "chunks", "reads"), LOG);
+        metrics.register(name(ChunkedStorage.class, "buffers", "pooled"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return buffers.pooled.get();
+            }
+        });
+        metrics.register(name(ChunkedStorage.class, "buffers", "outstanding"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return buffers.outstanding.get();
+            }
+        });
+    }
+
+    /** Returns the session of the cluster. */
+    CassandraSession session() {
+        return this.session;
+    }
+
+    @Override
+    public ListenableFuture<Void> write(Cell cell) {
+        Cell identified = cell.identified();
+        return Futures.transform(
+                chunks(identified),
+                (AsyncFunction<Void, Void>) written -> this.session.write(manifest(identified)));
+    }
+
+    @Override
+    public ListenableFuture<Void> write(List<Cell> cells) {
+        List<Cell> identified = new ArrayList<>(cells.size());
+        List<Cell> manifests = new ArrayList<>(cells.size());
+        for (Cell cell : cells) {
+            identified.add(cell.identified());
+            manifests.add(manifest(identified.get(identified.size() - 1)));
+        }
+        // The chunks of each value in turn, and then the manifests together
+        ListenableFuture<Void> chunks = pipeline(identified.size(), 1, i -> chunks(identified.get(i)));
+        return Futures.transform(chunks, (AsyncFunction<Void, Void>) written -> this.session.write(manifests));
+    }
+
+    @Override
+    public ListenableFuture<Storage.Page> read(Slice slice) {
+        ListenableFuture<Storage.Page> page = this.session.read(slice);
+        if (!slice.values) {
+            return page;
+        }
+        return Futures.transform(page, (AsyncFunction<Storage.Page, Storage.Page>) this::assemble);
+    }
+
+    @Override
+    public ListenableFuture<Void> delete(Slice slice) {
+        String query = String.format(
+                "DELETE FROM %s.%s WHERE %s",
+                CassandraSession.KEYSPACE,
+                TABLE,
+                CassandraSession.where(slice));
+        ListenableFuture<ResultSet> chunks = this.session.execute(
+                query,
+                prepared -> prepared.bind(CassandraSession.values(slice).toArray()));
+        List<ListenableFuture<?>> deletes = ImmutableList.of(this.session.delete(slice), chunks);
+        return Futures.transform(
+                Futures.allAsList(deletes),
+                (AsyncFunction<List<Object>, Void>) deleted -> Futures.immediateFuture(null));
+    }
+
+    @Override
+    public void close() throws Exception {
+        this.session.close();
+    }
+
+    /** Writes the chunks of a cell's value. */
+    private ListenableFuture<Void> chunks(Cell cell) {
+        ByteBuffer value = cell.value();
+        int count = count(value.remaining(), this.chunkSize);
+        return pipeline(count, this.concurrency, i -> {
+            ByteBuffer chunk = value.duplicate();
+            chunk.position(value.position() + i * this.chunkSize);
+            chunk.limit(Math.min(value.limit(), chunk.position() + this.chunkSize));
+            long start = System.nanoTime();
+            ListenableFuture<ResultSet> write = this.session.execute(
+                    INSERT,
+                    prepared -> prepared.bind(cell.key(), cell.rev(), cell.tid(), i, chunk, cell.ttl()));
+            Futures.addCallback(write, this.writes.since(start));
+            return write;
+        });
+    }
+
+    private Cell manifest(Cell cell) {
+        ByteBuffer manifest = ByteBuffer.allocate(MANIFEST_SIZE);
+        manifest.putInt(MANIFEST_MAGIC).putInt(cell.value().remaining()).putInt(this.chunkSize).flip();
+        return new Cell(cell.key(), cell.rev(), cell.tid(), manifest, cell.ttl());
+    }
+
+    /** Reads the values of a page of manifests; if any fails, those already read are released. */
+    private ListenableFuture<Storage.Page> assemble(Storage.Page manifests) {
+        Page page = new Page(manifests);
+        ListenableFuture<Void> assembled = assemble(page, manifests.cells(), 0);
+        Futures.addCallback(assembled, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                page.release();
+            }
+        });
+        return Futures.transform(
+                assembled,
+                (AsyncFunction<Void, Storage.Page>) done -> Futures.immediateFuture(page));
+    }
+
+    /** Reads the values of {@code manifests} from {@code from} on, one at a time, into {@code page}. */
+    private ListenableFuture<Void> assemble(Page page, List<Cell> manifests, int from) {
+        int next = from;
+        while (next < manifests.size() && !isManifest(manifests.get(next).value())) {
+            // Written without chunking
+            page.cells.add(manifests.get(next++));
+        }
+        if (next == manifests.size()) {
+            return Futures.immediateFuture(null);
+        }
+
+        Cell manifest = manifests.get(next);
+        int remaining = next + 1;
+        return Futures.transform(value(manifest), (AsyncFunction<Cell, Void>) cell -> {
+            if (cell != null) {
+                page.cells.add(cell);
+                page.buffers.add(cell.value());
+            }
+            else {
+                page.dropped++;
+            }
+            return assemble(page, manifests, remaining);
+        });
+    }
+
+    /**
+     * Reads the value of a manifest, or returns null if any of its chunks are gone (expired, or deleted). The buffer is
+     * released unless the value is returned.
+     */
+    private ListenableFuture<Cell> value(Cell manifest) {
+        ByteBuffer header = manifest.value();
+        int length = header.getInt(header.position() + 4);
+        int chunkSize = header.getInt(header.position() + 8);
+        ByteBuffer value = this.buffers.acquire(length);
+        AtomicBoolean missing = new AtomicBoolean();
+
+        ListenableFuture<Void> chunks = pipeline(count(length, chunkSize), this.concurrency, i -> {
+            long start = System.nanoTime();
+            ListenableFuture<ResultSet> read = this.session.execute(
+                    SELECT,
+                    prepared -> prepared.bind(manifest.key(), manifest.rev(), manifest.tid(), i));
+            Futures.addCallback(read, this.reads.since(start));
+            return Futures.transform(read, (AsyncFunction<ResultSet, Void>) results -> {
+                Row row = results.one();
+                if (row == null) {
+                    missing.set(true);
+                    return Futures.immediateFuture(null);
+                }
+                ByteBuffer chunk = row.getBytesUnsafe("value");
+                int offset = i * chunkSize;
+                checkState(
+                        chunk.remaining() == Math.min(chunkSize, length - offset),
+                        "Chunk %s of %s/%s/%s is %s bytes",
+                        i,
+                        manifest.key(),
+                        manifest.rev(),
+                        manifest.tid(),
+                        chunk.remaining());
+                ByteBuffer target = value.duplicate();
+                target.position(offset);
+                target.put(chunk);
+                return Futures.immediateFuture(null);
+            });
+        });
+
+        Futures.addCallback(chunks, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // No chunk is still being copied into it
+                buffers.release(value);
+            }
+        });
+        return Futures.transform(chunks, (AsyncFunction<Void, Cell>) done -> {
+            if (missing.get()) {
+                this.buffers.release(value);
+                return Futures.immediateFuture(null);
+            }
+            return Futures
+                    .immediateFuture(new Cell(manifest.key(), manifest.rev(), manifest.tid(), value, manifest.ttl()));
+        });
+    }
+
+    /**
+     * Issues requests {@code 0} to {@code count - 1}, in order, with at most {@code concurrency} outstanding; the
+     * result completes once all have, or fails with the first to fail once those already issued have finished.
+     */
+    private static ListenableFuture<Void> pipeline(
+            int count,
+            int concurrency,
+            IntFunction<ListenableFuture<?>> request) {
+        Pipeline pipeline = new Pipeline(count, request);
+        for (int i = Math.min(concurrency, count); i > 0; i--) {
+            pipeline.issue();
+        }
+        if (count == 0) {
+            pipeline.done.set(null);
+        }
+        return pipeline.done;
+    }
+
+    static boolean isManifest(ByteBuffer value) {
+        return value != null
+                && value.remaining() == MANIFEST_SIZE
+                && value.getInt(value.position()) == MANIFEST_MAGIC;
+    }
+
+    private static int count(int length, int chunkSize) {
+        return Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Requests in flight are counted from before each claims its index until after the next has been issued, so the
+     * count only drops to zero once no more will be.
+     */
+    private static class Pipeline implements FutureCallback<Object> {
+        final SettableFuture<Void> done = SettableFuture.create();
+        private final int count;
+        private final IntFunction<ListenableFuture<?>> request;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Pipeline(int count, IntFunction<ListenableFuture<?>> request) {
+            this.count = count;
+            this.request = request;
+        }
+
+        void issue() {
+            this.inFlight.incrementAndGet();
+            int i = this.next.getAndIncrement();
+            if (i >= this.count || this.failure.get() != null) {
+                finished();
+                return;
+            }
+            ListenableFuture<?> future;
+            try {
+                future = this.request.apply(i);
+            }
+            catch (RuntimeException e) {
+                onFailure(e);
+                return;
+            }
+            Futures.addCallback(future, this);
+        }
+
+        @Override
+        public void onSuccess(Object result) {
+            issue();
+            finished();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            this.failure.compareAndSet(null, t);
+            finished();
+        }
+
+        private void finished() {
+            if (this.inFlight.decrementAndGet() > 0) {
+                return;
+            }
+            Throwable t = this.failure.get();
+            if (t != null) {
+                this.done.setException(t);
+            }
+            else {
+                this.done.set(null);
+            }
+        }
+    }
+
+    /** A page whose values have been assembled from their chunks. */
+    private class Page implements Storage.Page {
+        private final Storage.Page manifests;
+        final List<Cell> cells = new ArrayList<>();
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        int dropped;
+
+        Page(Storage.Page manifests) {
+            this.manifests = manifests;
+        }
+
+        @Override
+        public List<Cell> cells() {
+            return this.cells;
+        }
+
+        @Override
+        public boolean isLast() {
+            return this.manifests.isLast();
+        }
+
+        @Override
+        public ListenableFuture<Storage.Page> next() {
+            return Futures.transform(
+                    this.manifests.next(),
+                    (AsyncFunction<Storage.Page, Storage.Page>) ChunkedStorage.this::assemble);
+        }
+
+        @Override
+        public Trace trace() {
+            return this.manifests.trace();
+        }
+
+        @Override
+        public int dropped() {
+            return this.dropped;
+        }
+
+        @Override
+        public void release() {
+            for (ByteBuffer buffer : this.buffers) {
+                ChunkedStorage.this.buffers.release(buffer);
+            }
+            this.buffers.clear();
+        }
+    }
+
+    /**
+     * Direct buffers, kept for reuse once released, up to a total of {@code capacity} bytes. Sizes are rounded up to a
+     * power of two up to the chunk size, and to a multiple of it beyond, so no more than a chunk is wasted on a
+     * large value. Direct buffers, in use or free, take at most {@code limit} bytes; beyond that, buffers are
+     * allocated on the heap, and are not kept. Buffers that are never released are simply garbage collected (though
+     * direct ones still count against the limit).
+     */
+    private static class Pool {
+        private final ConcurrentMap<Integer, Queue<ByteBuffer>> free = new ConcurrentHashMap<>();
+        private final int chunkSize;
+        private final long capacity;
+        private final long limit;
+        private final Meter allocated;
+        private final Meter overflowed;
+        final AtomicLong pooled = new AtomicLong();
+        final AtomicLong outstanding = new AtomicLong();
+
+        Pool(int chunkSize, long capacity, long limit, Meter allocated, Meter overflowed) {
+            this.chunkSize = chunkSize;
+            this.capacity = capacity;
+            this.limit = limit;
+            this.allocated = allocated;
+            this.overflowed = overflowed;
+        }
+
+        /** Returns a buffer of {@code size} bytes (its limit), positioned at zero. */
+        ByteBuffer acquire(int size) {
+            int capacity = capacity(size);
+            Queue<ByteBuffer> queue = this.free.get(capacity);
+            ByteBuffer buffer = queue != null ? queue.poll() : null;
+            if (buffer != null) {
+                this.pooled.addAndGet(-capacity);
+                this.outstanding.addAndGet(capacity);
+            }
+            else if (this.outstanding.addAndGet(capacity) + this.pooled.get() <= this.limit) {
+                buffer = ByteBuffer.allocateDirect(capacity);
+                this.allocated.mark();
+            }
+            else {
+                this.outstanding.addAndGet(-capacity);
+                buffer = ByteBuffer.allocate(size);
+                this.overflowed.mark();
+            }
+            buffer.clear();
+            buffer.limit(size);
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            if (!buffer.isDirect()) {
+                return;
+            }
+            this.outstanding.addAndGet(-buffer.capacity());
+            if (this.pooled.addAndGet(buffer.capacity()) > this.capacity) {
+                this.pooled.addAndGet(-buffer.capacity());
+                return;
+            }
+            this.free.computeIfAbsent(buffer.capacity(), size -> new ConcurrentLinkedQueue<>()).offer(buffer);
+        }
+
+        private int capacity(int size) {
+            if (size > this.chunkSize) {
+                long chunks = (size + this.chunkSize - 1L) / this.chunkSize;
+                return (int) Math.min(Integer.MAX_VALUE, chunks * this.chunkSize);
+            }
+            return size <= 1 ? 1 : Math.min(this.chunkSize, Integer.highestOneBit(size - 1) << 1);
+        }
+    }
+
+}
@@ -0,0 +1,362 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a command on several {@link Worker}s at once, and merges their metrics into one report: each period, the
+ * combined rate of each meter, and the percentiles of each latency over every worker; and, at the end, cumulative
+ * totals (less any warm-up), and whether the combined throughput reached a {@link SteadyState}. Reports are merged by
+ * the period each worker numbered them with, and a period is reported once every worker has reported it (or has
+ * finished); workers that fail, or fall silent for more than two periods, are logged as such, and not waited for.
+ */
+public class Coordinator {
+    private static final Logger LOG = LoggerFactory.getLogger(Coordinator.class);
+    private static final Logger METRICS = LoggerFactory
+            .getLogger(name(Coordinator.class.getPackage().getName(), "metrics"));
+    private static final Logger LATENCY = LoggerFactory
+            .getLogger(name(Coordinator.class.getPackage().getName(), "latency"));
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final List<Connection> workers = new ArrayList<>();
+    private final SortedMap<Long, Period> periods = new TreeMap<>();
+    private final SortedMap<String, Histogram> totals = new TreeMap<>();
+    private final SortedMap<String, Long> reported = new TreeMap<>();
+    private final Map<String, Long> baseline = new HashMap<>();
+    private final SteadyState steadyState = new SteadyState();
+    private final long periodNanos;
+    private long reportedThrough;
+    private long warmUpNanos;
+    private long measuredFrom;
+    private boolean warmingUp;
+
+    /**
+     * Connects to each worker (retrying for up to a minute, while they start), and sends it its command.
+     *
+     * @param addresses
+     *            the address of each worker
+     * @param commands
+     *            the arguments of each worker's command
+     */
+    public Coordinator(List<InetSocketAddress> addresses, List<List<String>> commands, long period, TimeUnit unit)
+            throws IOException {
+        this.periodNanos = unit.toNanos(period);
+        for (int i = 0; i < addresses.size(); i++) {
+            Connection worker = new Connection(i + 1, addresses.get(i));
+            this.workers.add(worker);
+            worker.output.writeInt(commands.get(i).size());
+            for (String arg : commands.get(i)) {
+                worker.output.writeUTF(arg);
+            }
+            worker.output.flush();
+        }
+    }
+
+    /** Leaves the first {@code nanos} of the run out of the totals. */
+    public Coordinator warmUp(long nanos) {
+        this.warmUpNanos = nanos;
+        this.warmingUp = nanos > 0;
+        return this;
+    }
+
+    /** Starts every worker together, once all are ready, and reports until all have finished. Returns the failures. */
+    public int run() throws IOException, InterruptedException {
+        for (Connection worker : this.workers) {
+            byte message = worker.input.readByte();
+            if (message != Worker.READY) {
+                String reason = message == Worker.FAILED ? worker.input.readUTF() : "unexpected message " + message;
+                throw new IllegalStateException(
+                        String.format("Worker %d (%s) rejected its command: %s", worker.id, worker.address, reason));
+            }
+        }
+        LOG.info("All {} workers ready; starting", this.workers.size());
+        for (Connection worker : this.workers) {
+            worker.output.writeByte(Worker.START);
+            worker.output.flush();
+        }
+        this.measuredFrom = System.nanoTime();
+        for (Connection worker : this.workers) {
+            worker.lastReport = this.measuredFrom;
+        }
+
+        List<Thread> readers = new ArrayList<>();
+        for (Connection worker : this.workers) {
+            Thread reader = new Thread(worker::read, "coordinator-worker-" + worker.id);
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coordinator-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::check, this.periodNanos, this.periodNanos, TimeUnit.NANOSECONDS);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        reporter.shutdown();
+        reporter.awaitTermination(1, TimeUnit.SECONDS);
+
+        synchronized (this) {
+            flush(true);
+            if (this.warmingUp) {
+                LOG.warn("Finished before the end of the warm-up; the totals include it");
+            }
+            for (Map.Entry<String, Histogram> total : this.totals.entrySet()) {
+                LATENCY.info(LatencyReporter.format(name(total.getKey(), "total"), total.getValue()));
+            }
+            double seconds = (System.nanoTime() - this.measuredFrom) / 1e9;
+            for (Map.Entry<String, Long> count : this.reported.entrySet()) {
+                long measured = count.getValue() - this.baseline.getOrDefault(count.getKey(), 0L);
+                LATENCY.info(LatencyReporter.formatMeter(name(count.getKey(), "total"), measured, measured / seconds));
+            }
+            if (this.steadyState.settledAt() < 0) {
+                LOG.warn(this.steadyState.describe(this.periodNanos / 1e9));
+            }
+            else {
+                LOG.info(this.steadyState.describe(this.periodNanos / 1e9));
+            }
+        }
+
+        int failed = 0;
+        for (Connection worker : this.workers) {
+            failed += worker.failure != null ? 1 : 0;
+        }
+        return failed;
+    }
+
+    /** Warns of workers that have fallen silent, and reports the periods no longer waiting on them. */
+    private synchronized void check() {
+        long now = System.nanoTime();
+        for (Connection worker : this.workers) {
+            if (worker.lagging(now)) {
+                long silent = TimeUnit.NANOSECONDS.toSeconds(now - worker.lastReport);
+                LOG.warn("Worker {} ({}) has not reported for {}s", worker.id, worker.address, silent);
+            }
+        }
+        flush(false);
+    }
+
+    /** Reports each period, in order, that every worker has reported (or finished, or is lagging), or all if asked. */
+    private void flush(boolean all) {
+        long now = System.nanoTime();
+        while (!this.periods.isEmpty()) {
+            long first = this.periods.firstKey();
+            if (!all) {
+                for (Connection worker : this.workers) {
+                    if (worker.sequence < first && !worker.done && worker.failure == null && !worker.lagging(now)) {
+                        return;
+                    }
+                }
+            }
+            report(first, this.periods.remove(first));
+            this.reportedThrough = first;
+        }
+    }
+
+    /** Logs the merged metrics of a period, and the state of each worker; and samples its throughput. */
+    private void report(long sequence, Period period) {
+        double seconds = this.periodNanos / 1e9;
+        long throughput = 0;
+        for (Map.Entry<String, Long> delta : period.deltas.entrySet()) {
+            long count = this.reported.merge(delta.getKey(), delta.getValue(), Long::sum);
+            throughput += delta.getKey().endsWith(".attempted") ? delta.getValue() : 0;
+            METRICS.info(String.format(
+                    "type=METER, name=%s, count=%d, interval_rate=%.1f, rate_unit=events/second",
+                    delta.getKey(),
+                    count,
+                    delta.getValue() / seconds));
+        }
+        for (Map.Entry<String, Histogram> interval : period.latencies.entrySet()) {
+            LATENCY.info(LatencyReporter.format(interval.getKey(), interval.getValue()));
+            this.totals.computeIfAbsent(interval.getKey(), name -> new Histogram(3)).add(interval.getValue());
+        }
+        if (!period.partial) {
+            this.steadyState.add(throughput / seconds);
+        }
+
+        if (this.warmingUp && sequence * this.periodNanos >= this.warmUpNanos) {
+            this.warmingUp = false;
+            for (Histogram total : this.totals.values()) {
+                total.reset();
+            }
+            this.baseline.putAll(this.reported);
+            this.measuredFrom = System.nanoTime();
+            this.steadyState.clear();
+            LOG.info("Warm-up complete; measuring from here on");
+        }
+
+        StringBuilder status = new StringBuilder();
+        long now = System.nanoTime();
+        for (Connection worker : this.workers) {
+            status.append(String.format(
+                    " %d=%.1f/s",
+                    worker.id,
+                    period.attempted.getOrDefault(worker.id, 0L) / seconds));
+            if (worker.failure != null) {
+                status.append(" (failed)");
+            }
+            else if (worker.done) {
+                status.append(" (done)");
+            }
+            else if (worker.lagging(now)) {
+                long silent = TimeUnit.NANOSECONDS.toSeconds(now - worker.lastReport);
+                status.append(String.format(" (lagging, %ds)", silent));
+            }
+        }
+        METRICS.info("workers attempted:{}", status);
+    }
+
+    /**
+     * Adds a worker's report to its period (or, if that has been reported already, while the worker lagged, to the
+     * first not yet reported).
+     */
+    private synchronized void merge(
+            Connection worker,
+            long sequence,
+            boolean last,
+            Map<String, Long> meters,
+            Map<String, Histogram> latencies) {
+        Period period = this.periods.computeIfAbsent(Math.max(sequence, this.reportedThrough + 1), key -> new Period());
+        for (Map.Entry<String, Long> meter : meters.entrySet()) {
+            long delta = meter.getValue() - worker.meters.getOrDefault(meter.getKey(), 0L);
+            period.deltas.merge(meter.getKey(), delta, Long::sum);
+            if (meter.getKey().endsWith(".attempted")) {
+                period.attempted.merge(worker.id, delta, Long::sum);
+            }
+        }
+        for (Map.Entry<String, Histogram> latency : latencies.entrySet()) {
+            period.latencies.computeIfAbsent(latency.getKey(), name -> new Histogram(3)).add(latency.getValue());
+        }
+        period.partial |= last;
+        worker.meters = meters;
+        worker.sequence = sequence;
+        worker.lastReport = System.nanoTime();
+        flush(false);
+    }
+
+    /** The merged reports of one period: the increase in each meter, and the latencies recorded. */
+    private static class Period {
+        final SortedMap<String, Long> deltas = new TreeMap<>();
+        final SortedMap<String, Histogram> latencies = new TreeMap<>();
+        final Map<Integer, Long> attempted = new HashMap<>();
+        /** Whether any worker's report was its last, covering only part of the period. */
+        boolean partial;
+    }
+
+    private class Connection {
+        final int id;
+        final InetSocketAddress address;
+        final DataInputStream input;
+        final DataOutputStream output;
+        Map<String, Long> meters = new HashMap<>();
+        long sequence;
+        volatile long lastReport = System.nanoTime();
+        volatile boolean done;
+        volatile String failure;
+
+        Connection(int id, InetSocketAddress address) throws IOException {
+            this.id = id;
+            this.address = address;
+            Socket socket = connect(address);
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        boolean lagging(long now) {
+            return !this.done && this.failure == null && now - this.lastReport > periodNanos * 2;
+        }
+
+        /** Reads reports until the worker is done, or fails. */
+        void read() {
+            try {
+                while (true) {
+                    byte message = this.input.readByte();
+                    if (message == Worker.DONE) {
+                        this.done = true;
+                        LOG.info("Worker {} ({}) done", this.id, this.address);
+                        return;
+                    }
+                    if (message == Worker.FAILED) {
+                        this.failure = this.input.readUTF();
+                        LOG.error("Worker {} ({}) failed: {}", this.id, this.address, this.failure);
+                        return;
+                    }
+                    readReport();
+                }
+            }
+            catch (EOFException e) {
+                this.failure = "disconnected";
+                LOG.error("Worker {} ({}) disconnected before finishing", this.id, this.address);
+            }
+            catch (IOException | DataFormatException e) {
+                this.failure = e.toString();
+                LOG.error("Worker {} ({}) failed: {}", this.id, this.address, e.toString());
+            }
+        }
+
+        private void readReport() throws IOException, DataFormatException {
+            long sequence = this.input.readLong();
+            boolean last = this.input.readBoolean();
+            Map<String, Long> meters = new HashMap<>();
+            for (int i = this.input.readInt(); i > 0; i--) {
+                meters.put(this.input.readUTF(), this.input.readLong());
+            }
+            Map<String, Histogram> latencies = new HashMap<>();
+            for (int i = this.input.readInt(); i > 0; i--) {
+                String name = this.input.readUTF();
+                byte[] encoded = new byte[this.input.readInt()];
+                this.input.readFully(encoded);
+                latencies.put(name, Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(encoded), 0));
+            }
+            merge(this, sequence, last, meters, latencies);
+        }
+    }
+
+    private static Socket connect(InetSocketAddress address) throws IOException {
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+        while (true) {
+            try {
+                return new Socket(address.getHostString(), address.getPort());
+            }
+            catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(250);
+                }
+                catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+}
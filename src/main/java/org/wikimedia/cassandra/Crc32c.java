@@ -0,0 +1,159 @@
+package org.wikimedia.cassandra;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+import com.google.common.base.Throwables;
+
+/**
+ * CRC32C (Castagnoli) checksums of {@link ByteBuffer}s, heap or direct, computed in place: neither the buffers nor
+ * their positions are changed, and nothing is copied. Uses {@code java.util.zip.CRC32C} where the runtime has it (Java
+ * 9 and later, with hardware support on most platforms), and otherwise a table-driven implementation (slicing by 8).
+ * Instances are not thread-safe; {@link #get()} returns the calling thread's, reset.
+ */
+abstract class Crc32c {
+    private static final MethodHandle JDK = jdk();
+    private static final ThreadLocal<Crc32c> INSTANCES = ThreadLocal
+            .withInitial(() -> JDK != null ? new Jdk() : new Table());
+
+    /** Returns the calling thread's instance, reset. */
+    static Crc32c get() {
+        Crc32c crc = INSTANCES.get();
+        crc.reset();
+        return crc;
+    }
+
+    /** Adds the remaining bytes of {@code buffer}. */
+    abstract Crc32c update(ByteBuffer buffer);
+
+    /** Returns the checksum of the bytes added since the reset. */
+    abstract int value();
+
+    abstract void reset();
+
+    /** Returns {@code CRC32C::new}, as a {@code () -> Checksum}, or null if there's no such class. */
+    private static MethodHandle jdk() {
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            return MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static class Jdk extends Crc32c {
+        private static final MethodHandle UPDATE = update();
+        private final Checksum checksum;
+
+        Jdk() {
+            try {
+                this.checksum = (Checksum) JDK.invokeExact();
+            }
+            catch (Throwable t) {
+                throw Throwables.propagate(t);
+            }
+        }
+
+        /** Returns {@code Checksum.update(ByteBuffer)}, a default method since Java 9. */
+        private static MethodHandle update() {
+            try {
+                return MethodHandles.publicLookup()
+                        .findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        Crc32c update(ByteBuffer buffer) {
+            try {
+                // Advances the position of its argument
+                UPDATE.invokeExact(this.checksum, buffer.duplicate());
+            }
+            catch (Throwable t) {
+                throw Throwables.propagate(t);
+            }
+            return this;
+        }
+
+        @Override
+        int value() {
+            return (int) this.checksum.getValue();
+        }
+
+        @Override
+        void reset() {
+            this.checksum.reset();
+        }
+    }
+
+    static class Table extends Crc32c {
+        private static final int POLYNOMIAL = 0x82f63b78;
+        /** {@code TABLES[k][b]} is the CRC of byte {@code b} followed by {@code k} zero bytes. */
+        private static final int[][] TABLES = new int[8][256];
+
+        static {
+            for (int b = 0; b < 256; b++) {
+                int crc = b;
+                for (int i = 0; i < 8; i++) {
+                    crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+                }
+                TABLES[0][b] = crc;
+            }
+            for (int k = 1; k < 8; k++) {
+                for (int b = 0; b < 256; b++) {
+                    int previous = TABLES[k - 1][b];
+                    TABLES[k][b] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+                }
+            }
+        }
+
+        private int crc = ~0;
+
+        @Override
+        Crc32c update(ByteBuffer buffer) {
+            int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+            int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+            ByteBuffer bytes = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int crc = this.crc;
+            int i = bytes.position();
+            int limit = bytes.limit();
+            for (; i + 8 <= limit; i += 8) {
+                long word = bytes.getLong(i);
+                int low = (int) word ^ crc;
+                int high = (int) (word >>> 32);
+                crc = t7[low & 0xff]
+                        ^ t6[(low >>> 8) & 0xff]
+                        ^ t5[(low >>> 16) & 0xff]
+                        ^ t4[low >>> 24]
+                        ^ t3[high & 0xff]
+                        ^ t2[(high >>> 8) & 0xff]
+                        ^ t1[(high >>> 16) & 0xff]
+                        ^ t0[high >>> 24];
+            }
+            for (; i < limit; i++) {
+                crc = (crc >>> 8) ^ t0[(crc ^ bytes.get(i)) & 0xff];
+            }
+            this.crc = crc;
+            return this;
+        }
+
+        @Override
+        int value() {
+            return ~this.crc;
+        }
+
+        @Override
+        void reset() {
+            this.crc = ~0;
+        }
+    }
+
+}
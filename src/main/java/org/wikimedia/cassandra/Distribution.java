@@ -0,0 +1,191 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A distribution over the integers {@code [0, size)}, used to select keys (and revisions) to operate on.
+ * Implementations are thread-safe, and draw without allocating.
+ * <p>
+ * Distributions are specified as one of:
+ * <ul>
+ * <li>{@code sequential}: 0, 1, 2, ... wrapping around at {@code size}</li>
+ * <li>{@code uniform}</li>
+ * <li>{@code zipf[:EXPONENT]}: Zipfian, with 0 the most popular (default exponent: 0.99)</li>
+ * <li>{@code hotspot[:HOT_SET[:HOT_OPS]]}: a fraction {@code HOT_OPS} of draws is uniform over the first fraction
+ * {@code HOT_SET} of values, and the rest uniform over the remainder (default: 0.2:0.8)</li>
+ * <li>{@code latest[:EXPONENT]}: Zipfian, with {@code size - 1} (the most recent) the most popular</li>
+ * </ul>
+ */
+public abstract class Distribution {
+    protected final int size;
+
+    protected Distribution(int size) {
+        checkArgument(size > 0, "Distribution size must be greater than zero");
+        this.size = size;
+    }
+
+    /** Returns the next value, from 0 (inclusive) to {@link #size()} (exclusive). */
+    public abstract int next();
+
+    public int size() {
+        return this.size;
+    }
+
+    public static Distribution parse(String spec, int size) {
+        String[] args = spec.split(":");
+        switch (args[0]) {
+            case "sequential":
+                return new Sequential(size);
+            case "uniform":
+                return new Uniform(size);
+            case "zipf":
+                return new Zipf(size, arg(args, 1, 0.99d));
+            case "hotspot":
+                return new Hotspot(size, arg(args, 1, 0.2d), arg(args, 2, 0.8d));
+            case "latest":
+                return new Latest(size, arg(args, 1, 0.99d));
+            default:
+                throw new IllegalArgumentException("Unknown distribution: " + spec);
+        }
+    }
+
+    private static double arg(String[] args, int index, double defaultValue) {
+        return args.length > index ? Double.parseDouble(args[index]) : defaultValue;
+    }
+
+    static class Sequential extends Distribution {
+        private final AtomicLong sequence = new AtomicLong();
+
+        Sequential(int size) {
+            super(size);
+        }
+
+        @Override
+        public int next() {
+            return (int) (this.sequence.getAndIncrement() % this.size);
+        }
+    }
+
+    static class Uniform extends Distribution {
+        Uniform(int size) {
+            super(size);
+        }
+
+        @Override
+        public int next() {
+            return ThreadLocalRandom.current().nextInt(this.size);
+        }
+    }
+
+    static class Hotspot extends Distribution {
+        private final int hotSize;
+        private final double hotOps;
+
+        Hotspot(int size, double hotSet, double hotOps) {
+            super(size);
+            checkArgument(hotSet > 0 && hotSet <= 1, "Hot set must be a fraction in (0, 1]");
+            checkArgument(hotOps >= 0 && hotOps <= 1, "Hot ops must be a fraction in [0, 1]");
+            this.hotSize = Math.max(1, (int) (size * hotSet));
+            this.hotOps = hotOps;
+        }
+
+        @Override
+        public int next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (this.hotSize == this.size || random.nextDouble() < this.hotOps) {
+                return random.nextInt(this.hotSize);
+            }
+            return this.hotSize + random.nextInt(this.size - this.hotSize);
+        }
+    }
+
+    /**
+     * Zipfian, by rejection-inversion sampling (Hörmann and Derflinger, 1996); setup is constant-time, and any
+     * positive exponent is supported.
+     */
+    static class Zipf extends Distribution {
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralSize;
+        private final double s;
+
+        Zipf(int size, double exponent) {
+            super(size);
+            checkArgument(exponent > 0, "Zipfian exponent must be greater than zero");
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5d) - 1d;
+            this.hIntegralSize = hIntegral(size + 0.5d);
+            this.s = 2d - hIntegralInverse(hIntegral(2.5d) - h(2d));
+        }
+
+        @Override
+        public int next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (true) {
+                double u = this.hIntegralSize + random.nextDouble() * (this.hIntegralX1 - this.hIntegralSize);
+                double x = hIntegralInverse(u);
+                int k = (int) (x + 0.5d);
+                if (k < 1) {
+                    k = 1;
+                }
+                else if (k > this.size) {
+                    k = this.size;
+                }
+                if (k - x <= this.s || u >= hIntegral(k + 0.5d) - h(k)) {
+                    return k - 1;
+                }
+            }
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1d - this.exponent) * logX) * logX;
+        }
+
+        private double h(double x) {
+            return Math.exp(-this.exponent * Math.log(x));
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1d - this.exponent);
+            if (t < -1d) {
+                t = -1d;
+            }
+            return Math.exp(helper1(t) * x);
+        }
+
+        /** log(1 + x) / x, accurate for small x. */
+        private static double helper1(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.log1p(x) / x;
+            }
+            return 1d - x * (0.5d - x * (1d / 3d - x * 0.25d));
+        }
+
+        /** (exp(x) - 1) / x, accurate for small x. */
+        private static double helper2(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.expm1(x) / x;
+            }
+            return 1d + x * 0.5d * (1d + x * (1d / 3d) * (1d + x * 0.25d));
+        }
+    }
+
+    static class Latest extends Distribution {
+        private final Zipf zipf;
+
+        Latest(int size, double exponent) {
+            super(size);
+            this.zipf = new Zipf(size, exponent);
+        }
+
+        @Override
+        public int next() {
+            return this.size - 1 - this.zipf.next();
+        }
+    }
+
+}
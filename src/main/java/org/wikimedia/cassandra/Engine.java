@@ -0,0 +1,64 @@
+package org.wikimedia.cassandra;
+
+import java.util.function.Supplier;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Executes asynchronous operations, bounding the number of those in flight. Operations are suppliers of futures (for
+ * example, {@link CassandraSession#executeAsync}), so an engine can be exercised without a live cluster.
+ */
+public interface Engine extends AutoCloseable {
+
+    enum Type {
+        /** Non-blocking; in-flight requests are bounded by permits. */
+        ASYNC,
+        /** One blocking request per worker thread. */
+        THREADS,
+        /** Non-blocking, with requests grouped and capped per owning host (see {@link TokenAwareEngine}). */
+        TOKEN_AWARE;
+
+        static Type parse(String name) {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Submits an operation, blocking the caller while the engine is saturated. The callback is invoked once the
+     * operation's future completes.
+     */
+    <T> void submit(Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback);
+
+    /**
+     * Submits an operation on the partition {@code key}; engines that schedule by replica use the key to do so, others
+     * ignore it.
+     */
+    default <T> void submit(String key, Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+        submit(operation, callback);
+    }
+
+    /** Returns the number of operations submitted, but not yet completed. */
+    int inFlight();
+
+    /** Waits for in-flight operations to complete, and releases any resources. */
+    @Override
+    void close();
+
+    /** Creates an engine of any type except {@link Type#TOKEN_AWARE}, which requires a {@link TokenRing}. */
+    static Engine create(Type type, MetricRegistry metrics, String name, int concurrency) {
+        switch (type) {
+            case ASYNC:
+                return new AsyncEngine(metrics, name, concurrency);
+            case THREADS:
+                return new ThreadedEngine(metrics, name, concurrency);
+            default:
+                throw new IllegalArgumentException("Unknown engine type: " + type);
+        }
+    }
+
+    static long shutdownTimeout(int concurrency) {
+        return Math.max(concurrency * 2, 180);
+    }
+}
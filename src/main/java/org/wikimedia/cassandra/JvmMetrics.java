@@ -0,0 +1,70 @@
+package org.wikimedia.cassandra;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Gauges of the client's own memory and garbage collection, for comparing runs (for example, with values in one cell,
+ * and in chunks): {@code jvm.heap.used}, {@code jvm.heap.peak} (the sum of each heap pool's peak),
+ * {@code jvm.heap.live} (used after the latest collection), {@code jvm.direct.used}, {@code jvm.gc.count} and
+ * {@code jvm.gc.time} (in ms). Memory is in bytes.
+ */
+public class JvmMetrics implements MetricSet {
+    /** The gauges that count up from the start, rather than giving a current level. */
+    static final Set<String> CUMULATIVE = ImmutableSet.of("jvm.gc.count", "jvm.gc.time");
+
+    private final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final List<BufferPoolMXBean> buffers = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("jvm.heap.used", (Gauge<Long>) () -> heap(MemoryPoolMXBean::getUsage));
+        metrics.put("jvm.heap.peak", (Gauge<Long>) () -> heap(MemoryPoolMXBean::getPeakUsage));
+        metrics.put("jvm.heap.live", (Gauge<Long>) () -> heap(MemoryPoolMXBean::getCollectionUsage));
+        metrics.put("jvm.direct.used", (Gauge<Long>) () -> {
+            long used = 0;
+            for (BufferPoolMXBean pool : this.buffers) {
+                used += pool.getName().equals("direct") ? pool.getMemoryUsed() : 0;
+            }
+            return used;
+        });
+        metrics.put("jvm.gc.count", (Gauge<Long>) () -> collections(GarbageCollectorMXBean::getCollectionCount));
+        metrics.put("jvm.gc.time", (Gauge<Long>) () -> collections(GarbageCollectorMXBean::getCollectionTime));
+        return metrics;
+    }
+
+    private long heap(Function<MemoryPoolMXBean, MemoryUsage> usage) {
+        long used = 0;
+        for (MemoryPoolMXBean pool : this.pools) {
+            MemoryUsage pooled = pool.getType() == MemoryType.HEAP ? usage.apply(pool) : null;
+            used += pooled != null ? pooled.getUsed() : 0;
+        }
+        return used;
+    }
+
+    private long collections(ToLongFunction<GarbageCollectorMXBean> count) {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : this.collectors) {
+            total += Math.max(0, count.applyAsLong(collector));
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,48 @@
+package org.wikimedia.cassandra;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A latency histogram (in nanoseconds). Latencies are recorded relative to an operation's <i>intended</i> start time,
+ * so that time spent waiting behind the engine is counted (a correction for coordinated omission).
+ */
+public class Latency implements Metric {
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+    private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    public static Latency register(MetricRegistry metrics, String name) {
+        return metrics.register(name, new Latency());
+    }
+
+    /** Records the time elapsed since an intended start time, as obtained from {@link System#nanoTime()}. */
+    public void record(long intendedStartNanos) {
+        this.recorder.recordValue(Math.max(0, System.nanoTime() - intendedStartNanos));
+    }
+
+    /** Returns the latencies recorded since the previous call, and adds them to the running total. */
+    public synchronized Histogram interval() {
+        this.interval = this.recorder.getIntervalHistogram(this.interval);
+        this.total.add(this.interval);
+        return this.interval;
+    }
+
+    /** Discards every latency recorded so far (for example, those of a warm-up). */
+    public synchronized void reset() {
+        this.interval = this.recorder.getIntervalHistogram(this.interval);
+        this.interval.reset();
+        this.total.reset();
+    }
+
+    /** Returns a copy of all latencies recorded up to the most recent interval. */
+    public synchronized Histogram total() {
+        return this.total.copy();
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Periodically logs the interval percentiles of each {@link Latency} in a registry, and a cumulative summary when
+ * stopped: the total percentiles of each latency, the count and mean rate of each meter, and whether throughput (of
+ * every {@code *.attempted} meter) reached a {@link SteadyState}; and the client's own memory and collections (each
+ * {@code jvm.*} gauge, see {@link JvmMetrics}). Anything recorded during a warm-up is left out of the summary.
+ */
+public class LatencyReporter {
+    private final MetricRegistry metrics;
+    private final Logger log;
+    private final ScheduledExecutorService executor;
+    private final SteadyState steadyState = new SteadyState();
+    private final Map<String, Long> baseline = new HashMap<>();
+    private double periodSeconds = 1;
+    private long measuredFrom = System.nanoTime();
+    private long warmUpEnds;
+    private boolean warmingUp;
+    private long attempted;
+
+    public LatencyReporter(MetricRegistry metrics, Logger log) {
+        this.metrics = metrics;
+        this.log = log;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "latency-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start(long period, TimeUnit unit) {
+        this.periodSeconds = unit.toNanos(period) / 1e9;
+        this.executor.scheduleAtFixedRate(this::report, period, period, unit);
+    }
+
+    /** Leaves everything recorded during the next {@code nanos} out of the summary. */
+    public synchronized void warmUp(long nanos) {
+        this.warmUpEnds = System.nanoTime() + nanos;
+        this.warmingUp = true;
+    }
+
+    /** Stops periodic reporting, then logs the final interval and cumulative summary. */
+    public void stop() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report(false);
+        summarize();
+    }
+
+    private void report() {
+        report(true);
+    }
+
+    /** Logs the latest interval, and (unless it was cut short) samples its throughput. */
+    private synchronized void report(boolean complete) {
+        for (Map.Entry<String, Latency> entry : latencies().entrySet()) {
+            this.log.info(format(entry.getKey(), entry.getValue().interval()));
+        }
+
+        long attempted = 0;
+        for (Map.Entry<String, Meter> meter : this.metrics.getMeters().entrySet()) {
+            attempted += meter.getKey().endsWith(".attempted") ? meter.getValue().getCount() : 0;
+        }
+        if (complete) {
+            this.steadyState.add((attempted - this.attempted) / this.periodSeconds);
+        }
+        this.attempted = attempted;
+
+        if (this.warmingUp && System.nanoTime() - this.warmUpEnds >= 0) {
+            this.warmingUp = false;
+            for (Latency latency : latencies().values()) {
+                latency.reset();
+            }
+            for (Map.Entry<String, Meter> meter : this.metrics.getMeters().entrySet()) {
+                this.baseline.put(meter.getKey(), meter.getValue().getCount());
+            }
+            for (Map.Entry<String, Gauge<?>> gauge : jvm().entrySet()) {
+                if (JvmMetrics.CUMULATIVE.contains(gauge.getKey())) {
+                    this.baseline.put(gauge.getKey(), ((Number) gauge.getValue().getValue()).longValue());
+                }
+            }
+            this.measuredFrom = System.nanoTime();
+            this.steadyState.clear();
+            this.log.info("Warm-up complete; measuring from here on");
+        }
+    }
+
+    private synchronized void summarize() {
+        if (this.warmingUp) {
+            this.log.warn("Finished before the end of the warm-up; the summary includes it");
+        }
+        for (Map.Entry<String, Latency> entry : latencies().entrySet()) {
+            this.log.info(format(name(entry.getKey(), "total"), entry.getValue().total()));
+        }
+        double seconds = (System.nanoTime() - this.measuredFrom) / 1e9;
+        for (Map.Entry<String, Meter> meter : new TreeMap<>(this.metrics.getMeters()).entrySet()) {
+            long count = meter.getValue().getCount() - this.baseline.getOrDefault(meter.getKey(), 0L);
+            this.log.info(formatMeter(name(meter.getKey(), "total"), count, count / seconds));
+        }
+        for (Map.Entry<String, Gauge<?>> gauge : jvm().entrySet()) {
+            Object value = gauge.getValue().getValue();
+            if (JvmMetrics.CUMULATIVE.contains(gauge.getKey())) {
+                value = ((Number) value).longValue() - this.baseline.getOrDefault(gauge.getKey(), 0L);
+            }
+            this.log.info(String.format("name=%s, value=%s", gauge.getKey(), value));
+        }
+        if (this.steadyState.settledAt() < 0) {
+            this.log.warn(this.steadyState.describe(this.periodSeconds));
+        }
+        else {
+            this.log.info(this.steadyState.describe(this.periodSeconds));
+        }
+    }
+
+    private SortedMap<String, Latency> latencies() {
+        SortedMap<String, Latency> latencies = new TreeMap<>();
+        for (Map.Entry<String, Metric> entry : this.metrics.getMetrics().entrySet()) {
+            if (entry.getValue() instanceof Latency) {
+                latencies.put(entry.getKey(), (Latency) entry.getValue());
+            }
+        }
+        return latencies;
+    }
+
+    private SortedMap<String, Gauge<?>> jvm() {
+        SortedMap<String, Gauge<?>> gauges = new TreeMap<>();
+        for (Map.Entry<String, Metric> entry : this.metrics.getMetrics().entrySet()) {
+            if (entry.getKey().startsWith("jvm.") && entry.getValue() instanceof Gauge) {
+                gauges.put(entry.getKey(), (Gauge<?>) entry.getValue());
+            }
+        }
+        return gauges;
+    }
+
+    static String format(String name, Histogram histogram) {
+        return String.format(
+                "name=%s, count=%d, p50=%.3f, p99=%.3f, p999=%.3f, max=%.3f, duration_unit=milliseconds",
+                name,
+                histogram.getTotalCount(),
+                millis(histogram.getValueAtPercentile(50.0)),
+                millis(histogram.getValueAtPercentile(99.0)),
+                millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+    }
+
+    static String formatMeter(String name, long count, double rate) {
+        return String.format("name=%s, count=%d, mean_rate=%.1f, rate_unit=events/second", name, count, rate);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+}
@@ -1,14 +1,26 @@
 package org.wikimedia.cassandra;
 
 import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.MetricRegistry;
@@ -20,25 +32,317 @@ import com.github.rvesse.airline.annotations.Command;
 import com.github.rvesse.airline.annotations.Option;
 import com.github.rvesse.airline.model.GlobalMetadata;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 @Cli(
         name = "krv-simulator",
         defaultCommand = Main.Help.class,
-        commands = { Main.Write.class, Main.Read.class, Main.Help.class })
+        commands = {
+                Main.Write.class,
+                Main.Read.class,
+                Main.ReRender.class,
+                Main.Mix.class,
+                Main.Retain.class,
+                Main.Replay.class,
+                Main.Generate.class,
+                Main.Work.class,
+                Main.Coordinate.class,
+                Main.Help.class })
 public class Main {
 
     abstract static class Cmd implements Runnable {
-        @Option(name = { "--host" }, description = "Cassandra hostname (default: 127.0.0.1)")
+        @Option(
+                name = { "--host" },
+                description = "Cassandra hostname, or comma-separated hostnames (default: 127.0.0.1)")
         String host = "127.0.0.1";
 
         @Option(name = { "--port" }, description = "Cassandra port (default: 9042)")
         int port = 9042;
 
+        @Option(
+                name = "--connections",
+                description = "Connections per host, as CORE[..MAX] (default: the driver's, by protocol version)")
+        String connections;
+
+        @Option(
+                name = "--max-requests-per-connection",
+                description = "Most requests in flight on each connection (default: the driver's)")
+        Integer maxRequestsPerConnection;
+
+        @Option(
+                name = "--compression",
+                description = "Protocol compression, one of none, lz4, or snappy (default: none)")
+        String compression = "none";
+
+        @Option(name = "--connect-timeout", description = "Connect timeout, in ms (default: the driver's, 5000)")
+        Integer connectTimeout;
+
+        @Option(name = "--read-timeout", description = "Per-request read timeout, in ms (default: the driver's, 12000)")
+        Integer readTimeout;
+
+        @Option(
+                name = "--driver-fetch-size",
+                description = "Default page size of reads without one of their own (default: the driver's, 5000)")
+        Integer driverFetchSize;
+
+        @Option(
+                name = "--load-balancing",
+                description = "Load balancing, one of token-aware, latency-aware, or round-robin (default: "
+                        + "token-aware)")
+        String loadBalancing = "token-aware";
+
+        @Option(
+                name = "--local-dc",
+                description = "Local datacenter, for load balancing (default: the first contacted)")
+        String localDc;
+
+        @Option(
+                name = "--speculative-execution",
+                description = "Speculative execution of idempotent requests, one of none, constant:DELAY_MS[:MAX], "
+                        + "or percentile:PERCENTILE[:MAX] (default: none)")
+        String speculativeExecution = "none";
+
+        @Option(name = "--concurrency", description = "Request concurrency (default: 10)")
+        int concurrency = 10;
+
+        @Option(
+                name = "--engine",
+                description = "Request engine, one of async, threads, or token-aware (default: async)")
+        String engine = "async";
+
+        @Option(
+                name = "--host-concurrency",
+                description = "Request concurrency per host, with the token-aware engine; as many more may queue for "
+                        + "each host before the caller blocks (default: --concurrency divided among the hosts, "
+                        + "rounded up)")
+        Integer hostConcurrency;
+
+        @Option(
+                name = "--simulated-ring",
+                description = "Group requests by the owners in a simulated ring of this many nodes (256 vnodes "
+                        + "each), rather than the cluster's, with the token-aware engine")
+        Integer simulatedRing;
+
+        @Option(
+                name = "--adaptive",
+                description = "Adjust concurrency, up to --concurrency, to the most that meets --latency-target, "
+                        + "using one of aimd, or gradient")
+        String adaptive;
+
+        @Option(
+                name = "--latency-target",
+                description = "Latency target (ms) of the --target-percentile, with --adaptive (default: 50)")
+        double latencyTarget = 50;
+
+        @Option(name = "--target-percentile", description = "Percentile held to --latency-target (default: 99)")
+        double targetPercentile = 99;
+
+        @Option(
+                name = "--rate",
+                description = "Issue requests open-loop at a fixed rate (ops/sec), or rate schedule, for example "
+                        + "2000/s, or 100..2000/60s,2000/5m; requests still wait for --concurrency, which must be at "
+                        + "least the rate times the latency, and those started late are counted (default: closed-loop)")
+        String rate;
+
+        @Option(
+                name = "--storage",
+                description = "Storage, one of cassandra, or memory (in-process, and empty to begin with) "
+                        + "(default: cassandra)")
+        String storage = "cassandra";
+
+        @Option(
+                name = "--chunk-size",
+                description = "Store values in chunks of this size, for example 256k, in the chunks table; values "
+                        + "read are assembled in direct memory, up to half the heap (default: none, each value in one "
+                        + "cell)")
+        String chunkSize;
+
+        @Option(
+                name = "--chunk-concurrency",
+                description = "Chunks of each value written or read at once, with --chunk-size (default: 4)")
+        int chunkConcurrency = 4;
+
+        @Option(name = "--record", description = "Record every storage request to this file (see replay)")
+        String record;
+
+        @Option(
+                name = "--verify",
+                description = "Write values with a header (key, rev, tid, TTL, generation and CRC32C), and check the "
+                        + "values read against theirs, counting mismatched, stale, expired and missing data")
+        boolean verify;
+
+        @Option(
+                name = "--duration",
+                description = "Run for this long after the warm-up, for example 90s or 10m, unless the operations "
+                        + "run out first; operation counts that aren't given are unlimited")
+        String duration;
+
+        @Option(
+                name = "--warmup",
+                description = "Leave the first part of the run, for example 30s, out of the summary (default: none)")
+        String warmup;
+
+        @Option(
+                name = "--rate-share",
+                description = "Issue only this fraction of --rate, as one of several workers (default: 1)")
+        double rateShare = 1;
+
         @Inject
         HelpOption<Cmd> help;
 
-        String contact() {
-            return String.format(this.host, this.port);
+        private volatile Workload workload;
+
+        String[] contacts() {
+            return this.host.split(",");
+        }
+
+        CassandraSession.Options sessionOptions() {
+            return new CassandraSession.Options()
+                    .port(this.port)
+                    .connections(this.connections)
+                    .maxRequestsPerConnection(this.maxRequestsPerConnection)
+                    .compression(this.compression)
+                    .connectTimeoutMillis(this.connectTimeout)
+                    .readTimeoutMillis(this.readTimeout)
+                    .fetchSize(this.driverFetchSize)
+                    .loadBalancing(this.loadBalancing, this.localDc)
+                    .speculativeExecution(this.speculativeExecution);
+        }
+
+        Storage storage() throws IOException {
+            checkArgument(
+                    this.chunkSize == null || this.storage.equals("cassandra"),
+                    "--chunk-size requires a cluster");
+            Storage storage;
+            switch (this.storage) {
+                case "cassandra":
+                    CassandraSession session = new CassandraSession(metrics, this.sessionOptions(), this.contacts());
+                    storage = this.chunkSize != null
+                            ? new ChunkedStorage(
+                                    metrics,
+                                    session,
+                                    ValueGenerator.size(this.chunkSize),
+                                    this.chunkConcurrency)
+                            : session;
+                    break;
+                case "memory":
+                    storage = new MemoryStorage();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown storage: " + this.storage);
+            }
+            if (this.verify) {
+                storage = new VerifyingStorage(metrics, storage);
+            }
+            if (this.record != null) {
+                return new RecordingStorage(storage, new RequestLog(Paths.get(this.record)));
+            }
+            return storage;
+        }
+
+        Engine engine(String name, Storage storage) {
+            Engine engine = this.fixedEngine(name, storage);
+            if (this.adaptive == null) {
+                return engine;
+            }
+            return new AdaptiveEngine(
+                    metrics,
+                    name,
+                    engine,
+                    this.concurrency,
+                    AdaptiveEngine.Algorithm.parse(this.adaptive),
+                    this.latencyTarget,
+                    this.targetPercentile);
+        }
+
+        private Engine fixedEngine(String name, Storage storage) {
+            Engine.Type type = Engine.Type.parse(this.engine);
+            if (type != Engine.Type.TOKEN_AWARE) {
+                return Engine.create(type, metrics, name, this.concurrency);
+            }
+
+            checkArgument(
+                    this.simulatedRing != null || this.storage.equals("cassandra"),
+                    "--simulated-ring is required without a cluster");
+            TokenRing ring = this.simulatedRing != null
+                    ? TokenRing.simulated(this.simulatedRing, 256, 0)
+                    : TokenRing.of(cluster(storage).metadata());
+            int hosts = this.simulatedRing != null
+                    ? this.simulatedRing
+                    : Math.max(1, cluster(storage).metadata().getAllHosts().size());
+            return new TokenAwareEngine(
+                    metrics,
+                    name,
+                    this.concurrency,
+                    ring,
+                    this.hostConcurrency != null ? this.hostConcurrency : (this.concurrency + hosts - 1) / hosts);
+        }
+
+        private static CassandraSession cluster(Storage storage) {
+            if (storage instanceof RecordingStorage) {
+                return cluster(((RecordingStorage) storage).storage());
+            }
+            if (storage instanceof VerifyingStorage) {
+                return cluster(((VerifyingStorage) storage).storage());
+            }
+            if (storage instanceof ChunkedStorage) {
+                return ((ChunkedStorage) storage).session();
+            }
+            return (CassandraSession) storage;
+        }
+
+        Pacer pacer(String name) {
+            return Pacer.create(this.rate, this.rateShare, metrics, name);
+        }
+
+        /**
+         * Returns the partition offset and number of partitions operated on, for dividing them among workers, or null
+         * if the command can't be divided.
+         */
+        int[] partitions() {
+            return null;
+        }
+
+        /**
+         * Returns whether each partition must be left to one worker, when dividing the command; otherwise, every worker
+         * operates on all of them (so their key distribution is that of the whole run), dividing only the operations.
+         */
+        boolean ownsPartitions() {
+            return false;
+        }
+
+        /** Returns the number of operations, or null if it follows from the number of partitions. */
+        Long operations() {
+            return null;
+        }
+
+        /** Returns {@code count} if given, and otherwise {@code otherwise}, or null (unlimited) with --duration. */
+        Long operations(Long count, Long otherwise) {
+            return count != null ? count : this.duration != null ? null : otherwise;
+        }
+
+        static long count(Long operations) {
+            return operations != null ? operations : Long.MAX_VALUE;
+        }
+
+        /** Executes a workload for --duration (if given), leaving out the --warmup; {@link #stop()} stops it early. */
+        void execute(Workload workload) {
+            long warmup = this.warmup != null ? RateSchedule.duration(this.warmup) : 0;
+            if (this.warmup != null && latencies != null) {
+                latencies.warmUp(warmup);
+            }
+            if (this.duration != null) {
+                workload.until(System.nanoTime() + warmup + RateSchedule.duration(this.duration));
+            }
+            this.workload = workload;
+            workload.execute();
+        }
+
+        void stop() {
+            Workload workload = this.workload;
+            if (workload != null) {
+                workload.stop();
+            }
         }
     }
 
@@ -56,8 +360,43 @@ public class Main {
         private int revOffset = 0;
         @Option(name = "--num-renders", description = "Number of renders (sub-revisions) to write (default: 10)")
         private int numRenders = 10;
-        @Option(name = "--concurrency", description = "Request concurrency (default: 10)")
-        private int concurrency = 10;
+        @Option(
+                name = { "-kd", "--key-distribution" },
+                description = "Partition selection, one of sequential, uniform, zipf[:EXPONENT], "
+                        + "hotspot[:HOT_SET[:HOT_OPS]], or latest[:EXPONENT]; once a partition has all of its "
+                        + "revisions, another is drawn (default: sequential)")
+        private String keyDistribution = "sequential";
+        @Option(
+                name = { "-vs", "--value-size" },
+                description = "Value sizes, one of sample (the bundled document), small, medium, large, fixed:SIZE, "
+                        + "uniform:MIN..MAX, or lognormal:MEDIAN[:SIGMA] (default: sample)")
+        private String valueSize = "sample";
+        @Option(
+                name = "--compressibility",
+                description = "Approximate ratio of compressed to uncompressed value size (default: 0.25)")
+        private double compressibility = 0.25;
+        @Option(name = "--seed", description = "Seed for generated values (default: 0)")
+        private long seed = 0;
+        @Option(
+                name = "--superseded-ttl",
+                description = "TTL of every render but the last of each revision (default: 60)")
+        private int supersededTtl = 60;
+        @Option(name = "--latest-ttl", description = "TTL of the last render of each revision; 0 is none (default: 0)")
+        private int latestTtl = 0;
+        @Option(
+                name = "--batch-rows",
+                description = "Write renders of the same partition as UNLOGGED batches of up to this many rows; "
+                        + "0 is unlimited, 1 disables batching (default: 1)")
+        private int batchRows = 1;
+        @Option(
+                name = "--batch-bytes",
+                description = "Limit batches to this many bytes of values, for example 512k (default: unlimited)")
+        private String batchBytes;
+        @Option(
+                name = "--batch-revisions",
+                description = "Number of consecutive revisions to batch together, with --batch-rows other than 1; "
+                        + "--num-revisions is rounded up to a multiple of this (default: 1)")
+        private int batchRevisions = 1;
 
         @Override
         public void run() {
@@ -65,21 +404,38 @@ public class Main {
                 return;
             }
 
-            try (CassandraSession session = new CassandraSession(this.contact())) {
-                new Writer(
+            try (Storage storage = this.storage()) {
+                this.execute(new Writer(
                         metrics,
-                        session,
-                        this.concurrency,
-                        this.numPartitions,
+                        storage,
+                        this.engine(name(Writer.class, "inserts"), storage),
+                        this.pacer(name(Writer.class, "inserts")),
+                        Distribution.parse(this.keyDistribution, this.numPartitions),
                         this.partOffset,
                         this.numRevisions,
                         this.revOffset,
-                        this.numRenders).execute();
+                        this.numRenders,
+                        ValueGenerator.create(this.valueSize, this.compressibility, this.seed),
+                        new TtlPolicy(this.supersededTtl, this.latestTtl),
+                        this.batchRows,
+                        this.batchBytes != null ? ValueGenerator.size(this.batchBytes) : 0,
+                        this.batchRevisions));
             }
             catch (Exception e) {
                 throw Throwables.propagate(e);
             }
         }
+
+        @Override
+        int[] partitions() {
+            return new int[] { this.partOffset, this.numPartitions };
+        }
+
+        /** Revisions are numbered per partition, so only one worker may write each. */
+        @Override
+        boolean ownsPartitions() {
+            return true;
+        }
     }
 
     @Command(name = "read", description = "Read previously written revisions")
@@ -88,8 +444,275 @@ public class Main {
         private int numPartitions = 1000;
         @Option(name = { "-po", "--partition-offset" }, description = "Partition offset to start from (default: 0)")
         private int partOffset = 0;
-        @Option(name = "--concurrency", description = "Request concurrency (default: 10)")
-        private int concurrency = 10;
+        @Option(
+                name = { "-n", "--num-reads" },
+                description = "Number of reads (default: number of partitions, or unlimited with --duration)")
+        private Long numReads;
+        @Option(
+                name = { "-kd", "--key-distribution" },
+                description = "Partition selection, one of sequential, uniform, zipf[:EXPONENT], "
+                        + "hotspot[:HOT_SET[:HOT_OPS]], or latest[:EXPONENT] (default: sequential)")
+        private String keyDistribution = "sequential";
+        @Option(
+                name = { "-rd", "--revision-distribution" },
+                description = "Revision selection, for the revision and renders shapes (see --key-distribution); "
+                        + "without --shapes, reads every render of the selected revisions, rather than partitions "
+                        + "(default: uniform)")
+        private String revDistribution;
+        @Option(
+                name = "--shapes",
+                description = "Weighted query shapes, as NAME=WEIGHT[,NAME=WEIGHT...], of latest (the latest render "
+                        + "of the latest revision), revision (the latest render of a revision), renders (every render "
+                        + "of a revision), listing (the latest render of each revision, without values; needs "
+                        + "Cassandra 3.10 or later), or scan (the partition) "
+                        + "(default: scan, or renders with --revision-distribution)")
+        private String shapes;
+        @Option(
+                name = "--fetch-sizes",
+                description = "Page size of each shape, as NAME=SIZE[,NAME=SIZE...] (default: the driver's)")
+        private String fetchSizes;
+        @Option(
+                name = "--limits",
+                description = "Most rows read by each shape, as NAME=LIMIT[,NAME=LIMIT...]; 0 is unlimited "
+                        + "(default: 1 for latest and revision, 10 for listing, otherwise unlimited)")
+        private String limits;
+        @Option(
+                name = "--values",
+                description = "Shapes that select values, as NAME[,NAME...], or none (default: all but listing)")
+        private String values;
+        @Option(
+                name = "--scan-pages",
+                description = "Most pages read by each scan; 0 is every page (default: 1)")
+        private int scanPages = 1;
+        @Option(
+                name = { "-nr", "--num-revisions" },
+                description = "Number of revisions written per-partition (default: 10000)")
+        private int numRevisions = 10000;
+        @Option(name = { "-ro", "--revision-offset" }, description = "Revision offset written from (default: 0)")
+        private int revOffset = 0;
+        @Option(
+                name = "--trace-probability",
+                description = "Fraction of reads to trace, recording the live rows and tombstones read (default: 0)")
+        private double traceProbability = 0;
+
+        @Override
+        public void run() {
+            if (this.help.showHelpIfRequested()) {
+                return;
+            }
+
+            try (Storage storage = this.storage()) {
+                this.execute(new Reader(
+                        metrics,
+                        storage,
+                        this.engine(name(Writer.class, "selects"), storage),
+                        this.pacer(name(Writer.class, "selects")),
+                        count(this.operations()),
+                        Distribution.parse(this.keyDistribution, this.numPartitions),
+                        this.partOffset,
+                        Distribution.parse(
+                                this.revDistribution != null ? this.revDistribution : "uniform",
+                                this.numRevisions),
+                        this.revOffset,
+                        this.queries(),
+                        this.traceProbability));
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        int[] partitions() {
+            return new int[] { this.partOffset, this.numPartitions };
+        }
+
+        @Override
+        Long operations() {
+            return this.operations(this.numReads, (long) this.numPartitions);
+        }
+
+        /** Returns the queries of --shapes, with their --fetch-sizes, --limits and --values. */
+        private List<Reader.Query> queries() {
+            Map<String, Double> shapes = Mixed.parseWeights(
+                    this.shapes != null ? this.shapes : this.revDistribution != null ? "renders=1" : "scan=1");
+            Map<String, Integer> fetchSizes = perShape(shapes, this.fetchSizes);
+            Map<String, Integer> limits = perShape(shapes, this.limits);
+            List<String> values = null;
+            if (this.values != null) {
+                values = new ArrayList<>();
+                for (String name : this.values.split(",")) {
+                    if (!name.trim().equals("none")) {
+                        values.add(shape(shapes, name));
+                    }
+                }
+            }
+
+            List<Reader.Query> queries = new ArrayList<>();
+            for (Map.Entry<String, Double> shape : shapes.entrySet()) {
+                Reader.Query query = new Reader.Query(Reader.Shape.parse(shape.getKey()), shape.getValue())
+                        .fetchSize(fetchSizes.getOrDefault(shape.getKey(), 0));
+                if (limits.containsKey(shape.getKey())) {
+                    query.limit(limits.get(shape.getKey()));
+                }
+                if (values != null) {
+                    query.values(values.contains(shape.getKey()));
+                }
+                if (query.shape == Reader.Shape.SCAN) {
+                    query.pages(this.scanPages);
+                }
+                queries.add(query);
+            }
+            return queries;
+        }
+
+        /** Parses {@code NAME=COUNT[,NAME=COUNT...]}, of the shapes in {@code shapes}. */
+        private static Map<String, Integer> perShape(Map<String, Double> shapes, String spec) {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            if (spec == null) {
+                return counts;
+            }
+            for (Map.Entry<String, Double> count : Mixed.parseWeights(spec).entrySet()) {
+                checkArgument(
+                        count.getValue() >= 0 && count.getValue() == Math.rint(count.getValue()),
+                        "Not a count: %s",
+                        count.getValue());
+                counts.put(shape(shapes, count.getKey()), count.getValue().intValue());
+            }
+            return counts;
+        }
+
+        private static String shape(Map<String, Double> shapes, String name) {
+            checkArgument(shapes.containsKey(name.trim()), "Not one of the --shapes: %s", name);
+            return name.trim();
+        }
+    }
+
+    @Command(name = "rerender", description = "Simulate revision rerenders")
+    public static class ReRender extends Cmd {
+        @Option(
+                name = { "-n", "--num-rerenders" },
+                description = "Number of rerenders (default: 10, or unlimited with --duration)")
+        private Long numRerenders;
+        @Option(name = { "-np", "--num-partitions" }, description = "Number of partitions to rerender (default: 1000)")
+        private int numPartitions = 1000;
+        @Option(name = { "-po", "--partition-offset" }, description = "Partition offset to start from (default: 0)")
+        private int partOffset = 0;
+        @Option(
+                name = { "-kd", "--key-distribution" },
+                description = "Partition selection, one of sequential, uniform, zipf[:EXPONENT], "
+                        + "hotspot[:HOT_SET[:HOT_OPS]], or latest[:EXPONENT] (default: uniform)")
+        private String keyDistribution = "uniform";
+        @Option(
+                name = { "-nr", "--num-revisions" },
+                description = "Number of revisions per-partition to rerender (default: 10000)")
+        private int numRevisions = 10000;
+        @Option(name = { "-ro", "--revision-offset" }, description = "Revision offset to start from (default: 0)")
+        private int revOffset = 0;
+        @Option(
+                name = { "-rd", "--revision-distribution" },
+                description = "Revision selection (see --key-distribution) (default: latest)")
+        private String revDistribution = "latest";
+        @Option(
+                name = { "-vs", "--value-size" },
+                description = "Value sizes, one of sample (the bundled document), small, medium, large, fixed:SIZE, "
+                        + "uniform:MIN..MAX, or lognormal:MEDIAN[:SIGMA] (default: fixed:5m)")
+        private String valueSize = "fixed:5m";
+        @Option(
+                name = "--compressibility",
+                description = "Approximate ratio of compressed to uncompressed value size (default: 0.25)")
+        private double compressibility = 0.25;
+        @Option(name = { "-t", "--time-to-live" }, description = "TTL to apply to superseded renders (default: 300)")
+        private int timeToLive = 300;
+        @Option(name = "--limit", description = "Number of superseded renders to apply a TTL to (default: 5)")
+        private int limit = 5;
+        @Option(name = "--fetch-size", description = "Page size when selecting superseded renders (default: 5)")
+        private int fetchSize = 5;
+
+        @Override
+        public void run() {
+            if (this.help.showHelpIfRequested()) {
+                return;
+            }
+
+            try (Storage storage = this.storage()) {
+                this.execute(new ReRenderer(
+                        metrics,
+                        storage,
+                        this.engine(name(ReRenderer.class, "rerenders"), storage),
+                        this.pacer(name(ReRenderer.class, "rerenders")),
+                        count(this.operations()),
+                        Distribution.parse(this.keyDistribution, this.numPartitions),
+                        this.partOffset,
+                        Distribution.parse(this.revDistribution, this.numRevisions),
+                        this.revOffset,
+                        ValueGenerator.create(this.valueSize, this.compressibility, 0),
+                        this.timeToLive,
+                        this.limit,
+                        this.fetchSize));
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        int[] partitions() {
+            return new int[] { this.partOffset, this.numPartitions };
+        }
+
+        @Override
+        Long operations() {
+            return this.operations(this.numRerenders, 10L);
+        }
+    }
+
+    @Command(name = "mixed", description = "Interleave weighted reads, writes and rerenders over a shared key space")
+    public static class Mix extends Cmd {
+        @Option(
+                name = { "-n", "--num-operations" },
+                description = "Number of operations (default: 100000, or unlimited with --duration)")
+        private Long numOperations;
+        @Option(
+                name = { "-w", "--weights" },
+                description = "Relative weights of read, write and rerender operations (default: "
+                        + "read=80,write=15,rerender=5)")
+        private String weights = "read=80,write=15,rerender=5";
+        @Option(name = { "-np", "--num-partitions" }, description = "Number of partitions (default: 1000)")
+        private int numPartitions = 1000;
+        @Option(name = { "-po", "--partition-offset" }, description = "Partition offset to start from (default: 0)")
+        private int partOffset = 0;
+        @Option(
+                name = { "-kd", "--key-distribution" },
+                description = "Partition selection, one of sequential, uniform, zipf[:EXPONENT], "
+                        + "hotspot[:HOT_SET[:HOT_OPS]], or latest[:EXPONENT] (default: zipf)")
+        private String keyDistribution = "zipf";
+        @Option(
+                name = { "-nr", "--num-revisions" },
+                description = "Number of revisions previously written per-partition; new revisions are written "
+                        + "after these (default: 10000)")
+        private int numRevisions = 10000;
+        @Option(name = { "-ro", "--revision-offset" }, description = "Revision offset written from (default: 0)")
+        private int revOffset = 0;
+        @Option(
+                name = { "-rd", "--revision-distribution" },
+                description = "Revision selection for reads and rerenders (see --key-distribution) (default: latest)")
+        private String revDistribution = "latest";
+        @Option(name = "--num-renders", description = "Number of renders (sub-revisions) to write (default: 10)")
+        private int numRenders = 10;
+        @Option(
+                name = { "-vs", "--value-size" },
+                description = "Value sizes, one of sample (the bundled document), small, medium, large, fixed:SIZE, "
+                        + "uniform:MIN..MAX, or lognormal:MEDIAN[:SIGMA] (default: sample)")
+        private String valueSize = "sample";
+        @Option(
+                name = "--compressibility",
+                description = "Approximate ratio of compressed to uncompressed value size (default: 0.25)")
+        private double compressibility = 0.25;
+        @Option(name = { "-t", "--time-to-live" }, description = "TTL to apply to superseded renders (default: 300)")
+        private int timeToLive = 300;
+        @Option(name = "--fetch-size", description = "Page size when selecting superseded renders (default: 5)")
+        private int fetchSize = 5;
 
         @Override
         public void run() {
@@ -97,14 +720,438 @@ public class Main {
                 return;
             }
 
-            try (CassandraSession session = new CassandraSession(this.contact())) {
-                new Reader(metrics, session, this.concurrency, this.numPartitions, this.partOffset).execute();
+            try (Storage storage = this.storage()) {
+                Engine engine = this.engine(name(Mixed.class, "operations"), storage);
+                Pacer pacer = this.pacer(name(Mixed.class, "operations"));
+                Distribution keys = Distribution.parse(this.keyDistribution, this.numPartitions);
+                Distribution revisions = Distribution.parse(this.revDistribution, this.numRevisions);
+                ValueGenerator values = ValueGenerator.create(this.valueSize, this.compressibility, 0);
+
+                Map<Workload, Double> workloads = new LinkedHashMap<>();
+                for (Map.Entry<String, Double> weight : Mixed.parseWeights(this.weights).entrySet()) {
+                    Workload workload;
+                    switch (weight.getKey()) {
+                        case "read":
+                            workload = new Reader(
+                                    metrics,
+                                    storage,
+                                    engine,
+                                    pacer,
+                                    0,
+                                    keys,
+                                    this.partOffset,
+                                    revisions,
+                                    this.revOffset,
+                                    Collections.singletonList(new Reader.Query(Reader.Shape.RENDERS, 1)),
+                                    0);
+                            break;
+                        case "write":
+                            workload = new Writer(
+                                    metrics,
+                                    storage,
+                                    engine,
+                                    pacer,
+                                    keys,
+                                    this.partOffset,
+                                    0,
+                                    this.revOffset + this.numRevisions,
+                                    this.numRenders,
+                                    values,
+                                    new TtlPolicy(60, 0),
+                                    1,
+                                    0,
+                                    1);
+                            break;
+                        case "rerender":
+                            workload = new ReRenderer(
+                                    metrics,
+                                    storage,
+                                    engine,
+                                    pacer,
+                                    0,
+                                    keys,
+                                    this.partOffset,
+                                    revisions,
+                                    this.revOffset,
+                                    values,
+                                    this.timeToLive,
+                                    5,
+                                    this.fetchSize);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown operation: " + weight.getKey());
+                    }
+                    workloads.put(workload, weight.getValue());
+                }
+
+                this.execute(new Mixed(engine, pacer, count(this.operations()), workloads));
             }
             catch (Exception e) {
                 throw Throwables.propagate(e);
             }
         }
 
+        @Override
+        int[] partitions() {
+            return new int[] { this.partOffset, this.numPartitions };
+        }
+
+        @Override
+        Long operations() {
+            return this.operations(this.numOperations, 100000L);
+        }
+    }
+
+    @Command(name = "retention", description = "Cull old revisions or renders with row and range deletions")
+    public static class Retain extends Cmd {
+        @Option(
+                name = { "-n", "--num-operations" },
+                description = "Number of culls (default: number of partitions, or unlimited with --duration)")
+        private Long numOperations;
+        @Option(name = { "-np", "--num-partitions" }, description = "Number of partitions (default: 1000)")
+        private int numPartitions = 1000;
+        @Option(name = { "-po", "--partition-offset" }, description = "Partition offset to start from (default: 0)")
+        private int partOffset = 0;
+        @Option(
+                name = { "-kd", "--key-distribution" },
+                description = "Partition selection, one of sequential, uniform, zipf[:EXPONENT], "
+                        + "hotspot[:HOT_SET[:HOT_OPS]], or latest[:EXPONENT] (default: sequential)")
+        private String keyDistribution = "sequential";
+        @Option(
+                name = { "-nr", "--num-revisions" },
+                description = "Number of revisions written per-partition (default: 10000)")
+        private int numRevisions = 10000;
+        @Option(name = { "-ro", "--revision-offset" }, description = "Revision offset written from (default: 0)")
+        private int revOffset = 0;
+        @Option(
+                name = { "-rd", "--revision-distribution" },
+                description = "Revision selection, with --keep-renders (see --key-distribution) (default: latest)")
+        private String revDistribution = "latest";
+        @Option(
+                name = "--keep-revisions",
+                description = "Keep this many of the latest revisions of each partition (default: 10)")
+        private int keepRevisions = 10;
+        @Option(
+                name = "--keep-renders",
+                description = "Keep this many of the latest renders of each revision, instead of culling revisions")
+        private Integer keepRenders;
+        @Option(
+                name = "--delete-mode",
+                description = "Issue one range deletion, or a deletion per row, one of range or row (default: range)")
+        private String deleteMode = "range";
+        @Option(name = "--fetch-size", description = "Page size when selecting rows to delete (default: 100)")
+        private int fetchSize = 100;
+
+        @Override
+        public void run() {
+            if (this.help.showHelpIfRequested()) {
+                return;
+            }
+
+            try (Storage storage = this.storage()) {
+                this.execute(new Retention(
+                        metrics,
+                        storage,
+                        this.engine(name(Retention.class, "culls"), storage),
+                        this.pacer(name(Retention.class, "culls")),
+                        count(this.operations()),
+                        Distribution.parse(this.keyDistribution, this.numPartitions),
+                        this.partOffset,
+                        Distribution.parse(this.revDistribution, this.numRevisions),
+                        this.revOffset,
+                        this.keepRenders != null ? Retention.Policy.RENDERS : Retention.Policy.REVISIONS,
+                        this.keepRenders != null ? this.keepRenders : this.keepRevisions,
+                        Retention.rangeDeletes(this.deleteMode),
+                        this.fetchSize));
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        int[] partitions() {
+            return new int[] { this.partOffset, this.numPartitions };
+        }
+
+        @Override
+        Long operations() {
+            return this.operations(this.numOperations, (long) this.numPartitions);
+        }
+    }
+
+    @Command(name = "replay", description = "Replay the storage requests recorded (with --record) by an earlier run")
+    public static class Replay extends Cmd {
+        @Arguments(description = "The request log to replay")
+        private String log;
+        @Option(
+                name = "--speed",
+                description = "Replay at this multiple of the original timing; 0 is as quickly as possible "
+                        + "(default: 1)")
+        private double speed = 1;
+        @Option(
+                name = "--compressibility",
+                description = "Approximate ratio of compressed to uncompressed value size (default: 0.25)")
+        private double compressibility = 0.25;
+
+        @Override
+        public void run() {
+            if (this.help.showHelpIfRequested()) {
+                return;
+            }
+            checkArgument(this.log != null, "A request log to replay is required");
+
+            try (Storage storage = this.storage(); RequestLogCursor log = new RequestLogCursor(Paths.get(this.log))) {
+                this.execute(new Replayer(
+                        metrics,
+                        storage,
+                        this.engine(name(Replayer.class, "requests"), storage),
+                        log,
+                        this.speed,
+                        this.compressibility));
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    @Command(
+            name = "generate-sstables",
+            description = "Write the data set of the write command directly to SSTables, for sstableloader")
+    public static class Generate implements Runnable {
+        @Inject
+        private HelpOption<Generate> help;
+
+        @Option(name = { "-np", "--num-partitions" }, description = "Number of partitions to write (default: 1000)")
+        private int numPartitions = 1000;
+        @Option(name = { "-po", "--partition-offset" }, description = "Partition offset to start from (default: 0)")
+        private int partOffset = 0;
+        @Option(
+                name = { "-nr", "--num-revisions" },
+                description = "Number of revisions to write per-partition (default: 10000)")
+        private int numRevisions = 10000;
+        @Option(name = { "-ro", "--revision-offset" }, description = "Revision offset to start from (default: 0)")
+        private int revOffset = 0;
+        @Option(name = "--num-renders", description = "Number of renders (sub-revisions) to write (default: 10)")
+        private int numRenders = 10;
+        @Option(
+                name = { "-vs", "--value-size" },
+                description = "Value sizes, one of sample (the bundled document), small, medium, large, fixed:SIZE, "
+                        + "uniform:MIN..MAX, or lognormal:MEDIAN[:SIGMA] (default: sample)")
+        private String valueSize = "sample";
+        @Option(
+                name = "--compressibility",
+                description = "Approximate ratio of compressed to uncompressed value size (default: 0.25)")
+        private double compressibility = 0.25;
+        @Option(name = "--seed", description = "Seed for generated values (default: 0)")
+        private long seed = 0;
+        @Option(
+                name = "--superseded-ttl",
+                description = "TTL of every render but the last of each revision (default: 60)")
+        private int supersededTtl = 60;
+        @Option(name = "--latest-ttl", description = "TTL of the last render of each revision; 0 is none (default: 0)")
+        private int latestTtl = 0;
+        @Option(
+                name = "--threads",
+                description = "Number of threads to write with; each needs about twice --buffer-size of heap (default: "
+                        + "one per core, up to as many as fit in half the heap)")
+        private Integer threads;
+        @Option(
+                name = "--buffer-size",
+                description = "Size (in MB) each thread buffers before writing an SSTable (default: 128)")
+        private int bufferSize = 128;
+        @Option(
+                name = "--verify",
+                description = "Write values with a header, for reading with --verify (see write --verify)")
+        private boolean verify;
+
+        @Arguments(description = "Directory to write to; SSTables are written to DIRECTORY/krv_simulation/data")
+        private String directory;
+
+        @Override
+        public void run() {
+            if (this.help.showHelpIfRequested()) {
+                return;
+            }
+            checkArgument(this.directory != null, "An output directory is required");
+
+            try {
+                long rows = new SSTableGenerator(
+                        new File(this.directory),
+                        this.numPartitions,
+                        this.partOffset,
+                        this.numRevisions,
+                        this.revOffset,
+                        this.numRenders,
+                        ValueGenerator.create(this.valueSize, this.compressibility, this.seed),
+                        new TtlPolicy(this.supersededTtl, this.latestTtl),
+                        this.bufferSize,
+                        this.verify).generate(
+                                this.threads != null ? this.threads : SSTableGenerator.defaultThreads(this.bufferSize));
+                LOG.info(
+                        "Generated {} rows; load them with: sstableloader -d HOST {}",
+                        rows,
+                        Paths.get(this.directory, SSTableGenerator.KEYSPACE, SSTableGenerator.TABLE));
+            }
+            catch (IOException | InterruptedException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    @Command(name = "worker", description = "Run one command on behalf of a coordinator (see coordinate)")
+    public static class Work implements Runnable {
+        @Option(
+                name = "--listen",
+                description = "Address to accept the coordinator's connection on; port 0 is any free port, which is "
+                        + "logged (default: 127.0.0.1:0)")
+        private String listen = "127.0.0.1:0";
+
+        @Override
+        public void run() {
+            InetSocketAddress address = address(this.listen);
+            try (ServerSocket server = new ServerSocket(address.getPort(), 1, address.getAddress())) {
+                LOG.info("Waiting for a coordinator on {}:{}", address.getHostString(), server.getLocalPort());
+                new Worker(metrics, args -> {
+                    Runnable command = new com.github.rvesse.airline.Cli<Runnable>(Main.class).parse(args);
+                    checkArgument(command instanceof Cmd, "Not a workload command: %s", Arrays.toString(args));
+                    return command;
+                }).serve(server, 1, TimeUnit.SECONDS);
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    @Command(
+            name = "coordinate",
+            description = "Divide a command's operations and rate (and, for write, its partitions) among workers, and "
+                    + "report their merged metrics")
+    public static class Coordinate implements Runnable {
+        private static final List<String> DIVIDED = Arrays.asList(
+                "-np",
+                "--num-partitions",
+                "-po",
+                "--partition-offset",
+                "-n",
+                "--num-reads",
+                "--num-rerenders",
+                "--num-operations",
+                "--rate-share",
+                "--record");
+
+        @Option(name = "--workers", description = "Number of local worker processes to start (default: 0)")
+        private int local = 0;
+
+        @Option(name = "--worker", description = "Address (HOST:PORT) of a remote worker; may be repeated")
+        private List<String> remote = new ArrayList<>();
+
+        @Arguments(description = "The command to run, and its options (following --)")
+        private List<String> command = new ArrayList<>();
+
+        @Override
+        public void run() {
+            checkArgument(this.local >= 0, "--workers must not be negative");
+            checkArgument(this.local + this.remote.size() > 0, "At least one worker is required");
+            Runnable parsed = new com.github.rvesse.airline.Cli<Runnable>(Main.class)
+                    .parse(this.command.toArray(new String[0]));
+            checkArgument(
+                    parsed instanceof Cmd && ((Cmd) parsed).partitions() != null,
+                    "Not a command that can be divided among workers: %s",
+                    this.command);
+            Cmd cmd = (Cmd) parsed;
+            int[] partitions = cmd.partitions();
+            int workers = this.local + this.remote.size();
+            checkArgument(
+                    !cmd.ownsPartitions() || partitions[1] >= workers,
+                    "Fewer partitions (%s) than workers",
+                    partitions[1]);
+
+            List<Process> processes = new ArrayList<>();
+            try {
+                List<InetSocketAddress> addresses = new ArrayList<>();
+                for (int i = 0; i < this.local; i++) {
+                    int port;
+                    try (ServerSocket free = new ServerSocket(0)) {
+                        port = free.getLocalPort();
+                    }
+                    processes.add(new ProcessBuilder(
+                            Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                            "-cp",
+                            System.getProperty("java.class.path"),
+                            Main.class.getName(),
+                            "worker",
+                            "--listen",
+                            "127.0.0.1:" + port).inheritIO().start());
+                    addresses.add(new InetSocketAddress("127.0.0.1", port));
+                }
+                for (String worker : this.remote) {
+                    addresses.add(address(worker));
+                }
+
+                List<List<String>> commands = new ArrayList<>();
+                long operations = 0;
+                for (int i = 0; i < workers; i++) {
+                    // With partitions divided, each worker's are a contiguous share; otherwise all share every one
+                    int offset = 0;
+                    int share = partitions[1];
+                    if (cmd.ownsPartitions()) {
+                        int base = partitions[1] / workers;
+                        int remainder = partitions[1] % workers;
+                        offset = i * base + Math.min(i, remainder);
+                        share = base + (i < remainder ? 1 : 0);
+                    }
+                    List<String> args = new ArrayList<>();
+                    for (int j = 0; j < this.command.size(); j++) {
+                        String arg = this.command.get(j);
+                        if (DIVIDED.contains(arg)) {
+                            j++;
+                        }
+                        else if (!(arg.contains("=") && DIVIDED.contains(arg.substring(0, arg.indexOf('='))))) {
+                            args.add(arg);
+                        }
+                    }
+                    args.add("--partition-offset");
+                    args.add(String.valueOf(partitions[0] + offset));
+                    args.add("--num-partitions");
+                    args.add(String.valueOf(share));
+                    if (cmd.operations() != null) {
+                        // Operations in proportion to partitions (or evenly, if shared), adding up to the total
+                        long upTo = cmd.ownsPartitions()
+                                ? cmd.operations() * (offset + share) / partitions[1]
+                                : cmd.operations() * (i + 1) / workers;
+                        args.add("-n");
+                        args.add(String.valueOf(upTo - operations));
+                        operations = upTo;
+                    }
+                    args.add("--rate-share");
+                    args.add(String.valueOf(cmd.rateShare / workers));
+                    if (cmd.record != null) {
+                        args.add("--record");
+                        args.add(cmd.record + "." + (i + 1));
+                    }
+                    commands.add(args);
+                }
+
+                int failed = new Coordinator(addresses, commands, 1, TimeUnit.SECONDS)
+                        .warmUp(cmd.warmup != null ? RateSchedule.duration(cmd.warmup) : 0)
+                        .run();
+                checkState(failed == 0, "%s of %s workers failed", failed, workers);
+                for (Process process : processes) {
+                    process.waitFor();
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                throw Throwables.propagate(e);
+            }
+            finally {
+                for (Process process : processes) {
+                    process.destroy();
+                }
+            }
+        }
     }
 
     @Command(name = "help")
@@ -128,21 +1175,64 @@ public class Main {
 
     }
 
+    private static final Logger LOG = LoggerFactory.getLogger(Main.class);
     private static final MetricRegistry metrics = new MetricRegistry();
+    private static LatencyReporter latencies;
 
-    public static void main(String[] args) throws Exception {
+    /** Parses a HOST:PORT address. */
+    static InetSocketAddress address(String address) {
+        int colon = address.lastIndexOf(':');
+        checkArgument(colon > 0, "Not a HOST:PORT address: %s", address);
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /** Starts once-per-second metric and latency reporting; the returned reporter logs a summary when stopped. */
+    static LatencyReporter startReporting(MetricRegistry registry) {
         Slf4jReporter reporter = Slf4jReporter
-                .forRegistry(metrics)
+                .forRegistry(registry)
                 .outputTo(LoggerFactory.getLogger(name(Main.class.getPackage().getName(), "metrics")))
                 .convertRatesTo(TimeUnit.SECONDS)
                 .convertDurationsTo(TimeUnit.MILLISECONDS)
                 .build();
+        registry.registerAll(new JvmMetrics());
         reporter.start(1, TimeUnit.SECONDS);
 
+        LatencyReporter latencies = new LatencyReporter(
+                registry,
+                LoggerFactory.getLogger(name(Main.class.getPackage().getName(), "latency")));
+        latencies.start(1, TimeUnit.SECONDS);
+        return latencies;
+    }
+
+    public static void main(String[] args) throws Exception {
         com.github.rvesse.airline.Cli<Runnable> cli = new com.github.rvesse.airline.Cli<>(Main.class);
         Runnable command = cli.parse(args);
-        command.run();
 
+        if (!(command instanceof Cmd)) {
+            // Workers report to their coordinator instead, and the coordinator reports the workers' metrics
+            command.run();
+            System.exit(0);
+        }
+
+        // On interrupt, stop issuing requests, and wait for those in flight and the summary
+        Cmd cmd = (Cmd) command;
+        CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            cmd.stop();
+            Uninterruptibles.awaitUninterruptibly(
+                    finished,
+                    Engine.shutdownTimeout(cmd.concurrency) + 10,
+                    TimeUnit.SECONDS);
+        }, "shutdown"));
+
+        latencies = startReporting(metrics);
+        try {
+            command.run();
+        }
+        finally {
+            latencies.stop();
+            finished.countDown();
+        }
         System.exit(0);
     }
 }
@@ -0,0 +1,416 @@
+package org.wikimedia.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * {@link Storage} in this process's heap, for developing workloads without a cluster, and for measuring the client's
+ * own overhead. Partitions are skip lists (in clustering order) in a concurrent map, so reads and writes are lock-free.
+ * <p>
+ * Like Cassandra, writes are timestamped and the latest wins; expired cells, row tombstones and range tombstones are
+ * kept for {@code gc_grace_seconds} (counting as tombstones read), after which reads purge them. Data shadowed by a
+ * range tombstone is purged when the tombstone is written. Values are stored by reference, not copied. Every
+ * operation completes before it returns.
+ */
+public class MemoryStorage implements Storage {
+    /** The {@code gc_grace_seconds} of {@code schema.cql}. */
+    static final long GC_GRACE_MICROS = TimeUnit.SECONDS.toMicros(300);
+    private static final int DEFAULT_FETCH_SIZE = 5000;
+    private static final ListenableFuture<Void> DONE = Futures.immediateFuture(null);
+
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    @Override
+    public ListenableFuture<Void> write(Cell cell) {
+        partition(cell.key()).write(cell, timestamp());
+        return DONE;
+    }
+
+    @Override
+    public ListenableFuture<Void> write(List<Cell> cells) {
+        // A batch shares one timestamp
+        long timestamp = timestamp();
+        for (Cell cell : cells) {
+            partition(cell.key()).write(cell, timestamp);
+        }
+        return DONE;
+    }
+
+    @Override
+    public ListenableFuture<Storage.Page> read(Slice slice) {
+        Partition partition = this.partitions.get(slice.key);
+        return Futures.immediateFuture(new Page(slice, partition, null, null, slice.limit > 0 ? slice.limit : -1));
+    }
+
+    @Override
+    public ListenableFuture<Void> delete(Slice slice) {
+        long timestamp = timestamp();
+        Partition partition = partition(slice.key);
+        if (slice.tid != null) {
+            partition.rows.merge(new Clustering(slice.rev, slice.tid), new Row(null, timestamp, 0), Row::latest);
+        }
+        else {
+            partition.delete(slice, new RangeTombstone(slice, timestamp));
+        }
+        return DONE;
+    }
+
+    @Override
+    public void close() {
+        this.partitions.clear();
+    }
+
+    private Partition partition(String key) {
+        Partition partition = this.partitions.get(key);
+        if (partition == null) {
+            Partition created = new Partition();
+            partition = this.partitions.putIfAbsent(key, created);
+            if (partition == null) {
+                partition = created;
+            }
+        }
+        return partition;
+    }
+
+    /** Returns a unique, increasing timestamp, in microseconds. */
+    private long timestamp() {
+        long now = nowMicros();
+        while (true) {
+            long last = this.clock.get();
+            long next = Math.max(now, last + 1);
+            if (this.clock.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    private static long nowMicros() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    /** Orders rows {@code rev DESC, tid DESC}; a null tid sorts before every tid of its revision. */
+    private static class Clustering implements Comparable<Clustering> {
+        final int rev;
+        final UUID tid;
+
+        Clustering(int rev, UUID tid) {
+            this.rev = rev;
+            this.tid = tid;
+        }
+
+        @Override
+        public int compareTo(Clustering other) {
+            if (this.rev != other.rev) {
+                return Integer.compare(other.rev, this.rev);
+            }
+            if (this.tid == null || other.tid == null) {
+                return this.tid == other.tid ? 0 : (this.tid == null ? -1 : 1);
+            }
+            return compareTids(other.tid, this.tid);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Clustering && compareTo((Clustering) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.rev + (this.tid != null ? this.tid.hashCode() : 0);
+        }
+    }
+
+    /** Compares time-based UUIDs by time, and then (like Cassandra's {@code timeuuid}) by their remaining bits. */
+    static int compareTids(UUID a, UUID b) {
+        int result = Long.compare(a.timestamp(), b.timestamp());
+        return result != 0 ? result : Long.compare(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    }
+
+    /** A cell's value (null for a row tombstone), write timestamp, and expiry (0 never expires). */
+    private static class Row {
+        final ByteBuffer value;
+        final long timestamp;
+        final long expiresMicros;
+
+        Row(ByteBuffer value, long timestamp, long expiresMicros) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.expiresMicros = expiresMicros;
+        }
+
+        boolean isLive(long now) {
+            return this.value != null && (this.expiresMicros == 0 || this.expiresMicros > now);
+        }
+
+        /** Returns true if this tombstone (or expired cell) is past its grace period. */
+        boolean isPurgeable(long now) {
+            long deletedAt = this.value == null ? this.timestamp : this.expiresMicros;
+            return deletedAt + GC_GRACE_MICROS < now;
+        }
+
+        static Row latest(Row a, Row b) {
+            return a.timestamp >= b.timestamp ? a : b;
+        }
+    }
+
+    /** A deletion of the whole partition, of revisions before one, or of the renders of a revision before one. */
+    private static class RangeTombstone {
+        final Integer rev;
+        final Integer revBefore;
+        final UUID tidBefore;
+        final long timestamp;
+
+        RangeTombstone(Slice slice, long timestamp) {
+            this.rev = slice.rev;
+            this.revBefore = slice.revBefore;
+            this.tidBefore = slice.tidBefore;
+            this.timestamp = timestamp;
+        }
+
+        boolean shadows(Clustering clustering, Row row) {
+            if (row.timestamp > this.timestamp) {
+                return false;
+            }
+            if (this.revBefore != null) {
+                return clustering.rev < this.revBefore;
+            }
+            if (this.rev != null) {
+                return clustering.rev == this.rev
+                        && (this.tidBefore == null || compareTids(clustering.tid, this.tidBefore) < 0);
+            }
+            return true;
+        }
+
+        /** Returns true if this overlaps any part of {@code slice}. */
+        boolean overlaps(Slice slice) {
+            if (this.revBefore != null) {
+                return slice.rev == null || slice.rev < this.revBefore;
+            }
+            if (this.rev != null) {
+                return slice.rev != null
+                        ? slice.rev.equals(this.rev)
+                        : slice.revBefore == null || this.rev < slice.revBefore;
+            }
+            return true;
+        }
+    }
+
+    private static class Partition {
+        final ConcurrentSkipListMap<Clustering, Row> rows = new ConcurrentSkipListMap<>();
+        final List<RangeTombstone> tombstones = new CopyOnWriteArrayList<>();
+
+        void write(Cell cell, long timestamp) {
+            long expires = cell.ttl() > 0 ? nowMicros() + TimeUnit.SECONDS.toMicros(cell.ttl()) : 0;
+            Clustering clustering = new Clustering(cell.rev(), cell.tid() != null ? cell.tid() : UUIDs.timeBased());
+            Row row = new Row(cell.value(), timestamp, expires);
+            if (!shadowed(clustering, row)) {
+                this.rows.merge(clustering, row, Row::latest);
+            }
+        }
+
+        void delete(Slice slice, RangeTombstone tombstone) {
+            this.tombstones.add(tombstone);
+            for (Map.Entry<Clustering, Row> entry : slice(slice, null).entrySet()) {
+                if (!selects(slice, entry.getKey())) {
+                    break;
+                }
+                if (tombstone.shadows(entry.getKey(), entry.getValue())) {
+                    this.rows.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        boolean shadowed(Clustering clustering, Row row) {
+            for (RangeTombstone tombstone : this.tombstones) {
+                if (tombstone.shadows(clustering, row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Returns the rows of a slice, in clustering order, starting after {@code after} (if not null). */
+        NavigableMap<Clustering, Row> slice(Slice slice, Clustering after) {
+            if (after != null) {
+                return this.rows.tailMap(after, false);
+            }
+            if (slice.tid != null || slice.tidBefore != null) {
+                return this.rows.tailMap(new Clustering(slice.rev, slice.tid != null ? slice.tid : slice.tidBefore),
+                        slice.tid != null);
+            }
+            if (slice.rev != null) {
+                return this.rows.tailMap(new Clustering(slice.rev, null), true);
+            }
+            if (slice.revBefore != null) {
+                return this.rows.tailMap(new Clustering(slice.revBefore - 1, null), true);
+            }
+            return this.rows;
+        }
+
+        /** Drops range tombstones past their grace period. */
+        void purge(long now) {
+            for (RangeTombstone tombstone : this.tombstones) {
+                if (tombstone.timestamp + GC_GRACE_MICROS < now) {
+                    this.tombstones.remove(tombstone);
+                }
+            }
+        }
+    }
+
+    /** A page of a slice, read (in full) when created. */
+    private class Page implements Storage.Page {
+        private final Slice slice;
+        private final Partition partition;
+        private final List<Cell> cells;
+        private final int remaining;
+        private final Clustering last;
+        private final Integer listed;
+        private final boolean exhausted;
+        private final Trace trace;
+
+        /**
+         * @param after
+         *            the last row of the previous page, or null
+         * @param listed
+         *            the revision of the last cell read, if its older renders are to be skipped
+         *            ({@link Slice#latestRenders()}), or null
+         * @param remaining
+         *            the number of cells left to read, or -1 for unlimited
+         */
+        Page(Slice slice, Partition partition, Clustering after, Integer listed, int remaining) {
+            this.slice = slice;
+            this.partition = partition;
+            if (partition == null) {
+                this.cells = Collections.emptyList();
+                this.remaining = 0;
+                this.last = null;
+                this.listed = null;
+                this.exhausted = true;
+                this.trace = new Trace(0, 0);
+                return;
+            }
+
+            long now = nowMicros();
+            int size = slice.fetchSize > 0 ? slice.fetchSize : DEFAULT_FETCH_SIZE;
+            if (remaining >= 0) {
+                size = Math.min(size, remaining);
+            }
+            List<Cell> cells = new ArrayList<>(Math.min(size, 64));
+            long tombstones = 0;
+            Clustering last = null;
+            boolean exhausted = true;
+
+            Iterator<Map.Entry<Clustering, Row>> rows = partition.slice(slice, after).entrySet().iterator();
+            while (rows.hasNext()) {
+                Map.Entry<Clustering, Row> entry = rows.next();
+                Clustering clustering = entry.getKey();
+                Row row = entry.getValue();
+                if (!selects(slice, clustering)) {
+                    break;
+                }
+                if (listed != null && listed == clustering.rev) {
+                    last = clustering;
+                    continue;
+                }
+                if (cells.size() == size) {
+                    exhausted = false;
+                    break;
+                }
+                last = clustering;
+                if (partition.shadowed(clustering, row)) {
+                    partition.rows.remove(clustering, row);
+                    continue;
+                }
+                if (!row.isLive(now)) {
+                    tombstones++;
+                    if (row.isPurgeable(now)) {
+                        partition.rows.remove(clustering, row);
+                    }
+                    continue;
+                }
+                // Rounded up, as 0 would be no TTL
+                int ttl = row.expiresMicros == 0
+                        ? 0
+                        : (int) Math.max(1, TimeUnit.MICROSECONDS.toSeconds(row.expiresMicros - now));
+                cells.add(new Cell(
+                        slice.key,
+                        clustering.rev,
+                        clustering.tid,
+                        slice.values ? row.value.duplicate() : null,
+                        ttl));
+                if (slice.latestRenders) {
+                    listed = clustering.rev;
+                }
+            }
+
+            if (after == null) {
+                partition.purge(now);
+                for (RangeTombstone tombstone : partition.tombstones) {
+                    if (tombstone.overlaps(slice)) {
+                        tombstones++;
+                    }
+                }
+            }
+
+            this.cells = cells;
+            this.remaining = remaining >= 0 ? remaining - cells.size() : -1;
+            this.last = last;
+            this.listed = listed;
+            this.exhausted = exhausted || this.remaining == 0;
+            this.trace = new Trace(cells.size(), tombstones);
+        }
+
+        @Override
+        public List<Cell> cells() {
+            return this.cells;
+        }
+
+        @Override
+        public boolean isLast() {
+            return this.exhausted;
+        }
+
+        @Override
+        public ListenableFuture<Storage.Page> next() {
+            return Futures.immediateFuture(
+                    new Page(this.slice, this.partition, this.last, this.listed, this.remaining));
+        }
+
+        @Override
+        public Trace trace() {
+            return this.slice.traced ? this.trace : null;
+        }
+    }
+
+    /** Returns true if the row at {@code clustering} is within {@code slice} (ignoring rows before its start). */
+    private static boolean selects(Slice slice, Clustering clustering) {
+        if (slice.rev != null && clustering.rev != slice.rev) {
+            return false;
+        }
+        if (slice.revBefore != null && clustering.rev >= slice.revBefore) {
+            return false;
+        }
+        if (slice.tid != null) {
+            return clustering.tid.equals(slice.tid);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,39 @@
+package org.wikimedia.cassandra;
+
+import com.google.common.util.concurrent.FutureCallback;
+
+/**
+ * Records the outcome and latency of a single request to its {@link OperationMetrics}, and optionally, the outcome of
+ * the units of work it carried to another.
+ */
+class MeteredCallback implements FutureCallback<Object> {
+    private final OperationMetrics metrics;
+    private final long start;
+    private final OperationMetrics units;
+    private final int count;
+
+    MeteredCallback(OperationMetrics metrics, long intendedStartNanos, OperationMetrics units, int count) {
+        this.metrics = metrics;
+        this.start = intendedStartNanos;
+        this.units = units;
+        this.count = count;
+    }
+
+    @Override
+    public void onSuccess(Object result) {
+        this.metrics.latency.record(this.start);
+        this.metrics.attempts.mark();
+        if (this.units != null) {
+            this.units.attempts.mark(this.count);
+        }
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+        this.metrics.failed(t);
+        if (this.units != null) {
+            this.units.failures.mark(this.count);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Interleaves the operations of other workloads, each selected at random in proportion to its weight. The
+ * constituent workloads should share this workload's engine (and pacer); their own operation counts are ignored, and
+ * they keep separate statistics.
+ */
+public class Mixed extends Workload {
+    private final long numOperations;
+    private final Workload[] workloads;
+    private final double[] cumulative;
+
+    public Mixed(Engine engine, Pacer pacer, long numOperations, Map<Workload, Double> weights) {
+        super(engine, pacer);
+        checkArgument(!weights.isEmpty(), "At least one workload is required");
+        this.numOperations = numOperations;
+        this.workloads = new Workload[weights.size()];
+        this.cumulative = new double[weights.size()];
+
+        int i = 0;
+        double total = 0;
+        for (Map.Entry<Workload, Double> entry : weights.entrySet()) {
+            checkArgument(entry.getValue() > 0, "Weights must be greater than zero");
+            total += entry.getValue();
+            this.workloads[i] = entry.getKey();
+            this.cumulative[i] = total;
+            i++;
+        }
+    }
+
+    @Override
+    protected long count() {
+        return this.numOperations;
+    }
+
+    @Override
+    protected void issue(long sequence, long intendedStartNanos) {
+        double choice = ThreadLocalRandom.current().nextDouble() * this.cumulative[this.cumulative.length - 1];
+        int i = 0;
+        while (i < this.cumulative.length - 1 && choice >= this.cumulative[i]) {
+            i++;
+        }
+        this.workloads[i].issue(sequence, intendedStartNanos);
+    }
+
+    /** Parses weights of the form {@code NAME=WEIGHT[,NAME=WEIGHT...]}, for example {@code read=80,write=20}. */
+    public static Map<String, Double> parseWeights(String spec) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (String weight : spec.split(",")) {
+            String[] parts = weight.trim().split("=");
+            checkArgument(parts.length == 2, "Invalid weight: %s", weight);
+            weights.put(parts[0].trim(), Double.parseDouble(parts[1].trim()));
+        }
+        return weights;
+    }
+
+}
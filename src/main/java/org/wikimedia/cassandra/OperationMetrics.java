@@ -0,0 +1,56 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import org.slf4j.Logger;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.QueryExecutionException;
+import com.google.common.util.concurrent.FutureCallback;
+
+/**
+ * Throughput, failures and latency of one type of operation, registered as {@code <name>.attempted},
+ * {@code <name>.failed} and {@code <name>.latency}. Failures are logged to {@code log}, unless it is null.
+ */
+class OperationMetrics {
+    final Meter attempts;
+    final Meter failures;
+    final Latency latency;
+    private final Logger log;
+
+    OperationMetrics(MetricRegistry metrics, String name, Logger log) {
+        this.attempts = metrics.meter(name(name, "attempted"));
+        this.failures = metrics.meter(name(name, "failed"));
+        this.latency = Latency.register(metrics, name(name, "latency"));
+        this.log = log;
+    }
+
+    /** Returns a callback for a request that was intended to start at the given {@link System#nanoTime()}. */
+    FutureCallback<Object> since(long intendedStartNanos) {
+        return new MeteredCallback(this, intendedStartNanos, null, 0);
+    }
+
+    /**
+     * Returns a callback for a request that carries a number of smaller operations (for example, the rows of a batch),
+     * whose throughput and failures are marked on {@code units}.
+     */
+    FutureCallback<Object> since(long intendedStartNanos, OperationMetrics units, int count) {
+        return new MeteredCallback(this, intendedStartNanos, units, count);
+    }
+
+    void failed(Throwable t) {
+        this.failures.mark();
+        if (this.log == null) {
+            return;
+        }
+        if (t instanceof NoHostAvailableException || t instanceof QueryExecutionException) {
+            this.log.warn(t.getMessage());
+        }
+        else {
+            this.log.error("Unable to execute statement", t);
+        }
+    }
+
+}
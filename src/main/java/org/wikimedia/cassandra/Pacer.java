@@ -0,0 +1,108 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Decides when a workload issues its next operation. An unthrottled pacer issues each operation as soon as the
+ * previous has been handed off (closed-loop); a fixed-rate pacer issues operations on a schedule that is independent of
+ * how quickly earlier ones complete (open-loop). Open-loop only holds while the engine accepts each operation as it is
+ * issued: once its concurrency is exhausted, submission blocks the generator, and operations fall behind schedule
+ * (counted by {@link #late()}).
+ * <p>
+ * Pacers are used by a single generator thread, and are not thread-safe.
+ */
+public abstract class Pacer {
+    /** How far behind schedule an operation may start before it is counted as late. */
+    static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Waits until the next operation is due, and returns the time (from {@link System#nanoTime()}) it was intended to
+     * start at.
+     */
+    public abstract long acquire();
+
+    /** Returns the number of operations that started more than {@link #LATE_NANOS} behind schedule. */
+    public long late() {
+        return 0;
+    }
+
+    public static Pacer unthrottled() {
+        return new Pacer() {
+            @Override
+            public long acquire() {
+                return System.nanoTime();
+            }
+        };
+    }
+
+    /**
+     * Returns a pacer for the {@link RateSchedule} described by {@code spec}, or an unthrottled pacer if the spec is
+     * null. The distance behind schedule is recorded as {@code <name>.lag}, and operations started late are marked on
+     * {@code <name>.late}.
+     */
+    public static Pacer create(String spec, MetricRegistry metrics, String name) {
+        return create(spec, 1, metrics, name);
+    }
+
+    /** As {@link #create(String, MetricRegistry, String)}, issuing only a {@code share} of the schedule's rate. */
+    public static Pacer create(String spec, double share, MetricRegistry metrics, String name) {
+        if (spec == null) {
+            return unthrottled();
+        }
+        return new FixedRate(
+                RateSchedule.parse(spec).scale(share),
+                Latency.register(metrics, name(name, "lag")),
+                metrics.meter(name(name, "late")));
+    }
+
+    /** Parks the calling thread until {@link System#nanoTime()} reaches {@code nanos}. */
+    static void parkUntil(long nanos) {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    static class FixedRate extends Pacer {
+        private final RateSchedule schedule;
+        private final Latency lag;
+        private final Meter late;
+        private long origin = -1;
+        private long next;
+
+        FixedRate(RateSchedule schedule, Latency lag, Meter late) {
+            this.schedule = schedule;
+            this.lag = lag;
+            this.late = late;
+        }
+
+        @Override
+        public long acquire() {
+            if (this.origin < 0) {
+                this.origin = this.next = System.nanoTime();
+            }
+
+            long intended = this.next;
+            parkUntil(intended);
+            this.lag.record(intended);
+            if (System.nanoTime() - intended > LATE_NANOS) {
+                this.late.mark();
+            }
+
+            this.next = intended + this.schedule.intervalNanos(intended - this.origin);
+            return intended;
+        }
+
+        @Override
+        public long late() {
+            return this.late.getCount();
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A target operation rate that varies over time, as a sequence of stages. Each stage either holds a rate, or ramps
+ * linearly from one rate to another, for a duration; the rate of the last stage is held once the schedule is
+ * exhausted.
+ * <p>
+ * Stages are comma-separated, and written as {@code RATE[/DURATION]} or {@code FROM..TO/DURATION}, where rates are in
+ * operations per second, and durations are suffixed with one of {@code ms}, {@code s}, {@code m}, or {@code h}. For
+ * example, {@code 100..2000/60s,2000/5m} ramps from 100 to 2000 ops/sec over a minute, and then holds at 2000 ops/sec.
+ */
+public class RateSchedule {
+    private static final Pattern STAGE = Pattern
+            .compile("(\\d+(?:\\.\\d+)?)(?:\\.\\.(\\d+(?:\\.\\d+)?))?(?:/s)?(?:/(\\d+)(ms|s|m|h))?");
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h)");
+
+    private final double[] from;
+    private final double[] to;
+    private final long[] ends;
+
+    private RateSchedule(double[] from, double[] to, long[] ends) {
+        this.from = from;
+        this.to = to;
+        this.ends = ends;
+    }
+
+    /** Returns the target rate (in operations per second), at the given time since the start of the schedule. */
+    public double rate(long elapsedNanos) {
+        long start = 0;
+        for (int i = 0; i < this.ends.length; i++) {
+            if (elapsedNanos < this.ends[i]) {
+                double progress = (double) (elapsedNanos - start) / (this.ends[i] - start);
+                return this.from[i] + (this.to[i] - this.from[i]) * progress;
+            }
+            start = this.ends[i];
+        }
+        return this.to[this.to.length - 1];
+    }
+
+    /** Returns this schedule with every rate multiplied by {@code factor} (for example, one worker's share). */
+    public RateSchedule scale(double factor) {
+        checkArgument(factor > 0, "Scale must be greater than zero");
+        double[] from = new double[this.from.length];
+        double[] to = new double[this.to.length];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = this.from[i] * factor;
+            to[i] = this.to[i] * factor;
+        }
+        return new RateSchedule(from, to, this.ends);
+    }
+
+    /** Returns the interval between operations at the given time since the start of the schedule. */
+    long intervalNanos(long elapsedNanos) {
+        return (long) (TimeUnit.SECONDS.toNanos(1) / rate(elapsedNanos));
+    }
+
+    public static RateSchedule parse(String spec) {
+        String[] stages = spec.split(",");
+        List<double[]> rates = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        long end = 0;
+
+        for (int i = 0; i < stages.length; i++) {
+            Matcher matcher = STAGE.matcher(stages[i].trim());
+            checkArgument(matcher.matches(), "Invalid rate stage: %s", stages[i]);
+            double from = Double.parseDouble(matcher.group(1));
+            double to = matcher.group(2) != null ? Double.parseDouble(matcher.group(2)) : from;
+            checkArgument(from > 0 && to > 0, "Rates must be greater than zero: %s", stages[i]);
+
+            if (matcher.group(3) != null) {
+                end += duration(Long.parseLong(matcher.group(3)), matcher.group(4));
+            }
+            else {
+                checkArgument(i == stages.length - 1, "Only the last stage may omit a duration: %s", stages[i]);
+                checkArgument(from == to, "A ramp requires a duration: %s", stages[i]);
+                end = Long.MAX_VALUE;
+            }
+            rates.add(new double[] { from, to });
+            ends.add(end);
+        }
+
+        double[] from = new double[rates.size()];
+        double[] to = new double[rates.size()];
+        long[] stageEnds = new long[rates.size()];
+        for (int i = 0; i < rates.size(); i++) {
+            from[i] = rates.get(i)[0];
+            to[i] = rates.get(i)[1];
+            stageEnds[i] = ends.get(i);
+        }
+        return new RateSchedule(from, to, stageEnds);
+    }
+
+    /** Parses a duration, such as {@code 90s} or {@code 10m}, into nanoseconds. */
+    public static long duration(String spec) {
+        Matcher matcher = DURATION.matcher(spec.trim());
+        checkArgument(matcher.matches(), "Invalid duration: %s", spec);
+        return duration(Long.parseLong(matcher.group(1)), matcher.group(2));
+    }
+
+    static long duration(long value, String unit) {
+        switch (unit) {
+            case "ms":
+                return TimeUnit.MILLISECONDS.toNanos(value);
+            case "s":
+                return TimeUnit.SECONDS.toNanos(value);
+            case "m":
+                return TimeUnit.MINUTES.toNanos(value);
+            case "h":
+                return TimeUnit.HOURS.toNanos(value);
+            default:
+                throw new IllegalArgumentException("Invalid duration unit: " + unit);
+        }
+    }
+
+}
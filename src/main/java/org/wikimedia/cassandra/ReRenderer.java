@@ -1,90 +1,186 @@
 package org.wikimedia.cassandra;
 
-import static org.wikimedia.cassandra.CassandraSession.KEYSPACE;
-import static org.wikimedia.cassandra.CassandraSession.TABLE;
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
-import javax.inject.Inject;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.Row;
-import com.datastax.driver.core.Statement;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.utils.UUIDs;
-import com.github.rvesse.airline.HelpOption;
-import com.github.rvesse.airline.SingleCommand;
-import com.github.rvesse.airline.annotations.Command;
-import com.github.rvesse.airline.annotations.Option;
-import com.github.rvesse.airline.annotations.restrictions.Required;
-
-@Command(name = "rerender", description = "Simulate revision rerenders")
-public class ReRenderer {
+import com.google.common.collect.ObjectArrays;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Simulates revision rerenders. Each rerender inserts a new render of a revision, and then applies a TTL to the
+ * previous renders of that revision. Many rerenders (of different keys and revisions) run concurrently, each as a
+ * pipeline of asynchronous stages:
+ * <ol>
+ * <li>INSERT the new render</li>
+ * <li>SELECT the tids and TTLs of up to {@code limit} older renders, a page of {@code fetchSize} at a time</li>
+ * <li>for each of those without a TTL, SELECT its value, and write it again with one</li>
+ * </ol>
+ * TTLs are per-cell, so applying one means writing the value again; renders that already have a TTL are skipped,
+ * though, and their values are never read.
+ */
+public class ReRenderer extends Workload {
     private static final Logger LOG = LoggerFactory.getLogger(ReRenderer.class);
 
-    private static final String INSERT = String
-            .format("INSERT INTO %s.%s (key,rev,tid,value) VALUES (?,?,?,?)", KEYSPACE, TABLE);;
-    private static final String SELECT = String.format(
-            "SELECT TTL(value) as expiry,key,rev,tid,value FROM %s.%s WHERE key=? AND rev=? AND tid < ? LIMIT 5",
-            KEYSPACE,
-            TABLE);
-    private static final String UPDATE = String
-            .format("UPDATE %s.%s USING TTL ? SET value=? WHERE key=? AND rev=? AND tid=?", KEYSPACE, TABLE);
-
-    @Option(name = { "-c", "--cassandra-contact-point" }, description = "Cassandra node contact")
-    private String cassandraContact = "localhost";
-    @Option(name = { "-n", "--num-renders" }, description = "Number of renders to create")
-    private int numRenders = 10;
-    @Option(name = { "-vs", "--value-size-mb" }, description = "Value size in megabytes")
-    private int valueSizeMB = 5;
-    @Option(name = { "-t", "--time-to-live" }, description = "Column TTL to apply to updated records")
-    private int timeToLive = 300;
-    @Inject
-    private HelpOption<ReRenderer> help;
-
-    private void execute() throws Exception {
-        if (this.help.showHelpIfRequested()) {
-            return;
-        }
+    private final Storage storage;
+    private final long numRerenders;
+    private final Distribution keys;
+    private final int partitionStart;
+    private final Distribution revisions;
+    private final int revisionStart;
+    private final ValueGenerator values;
+    private final int timeToLive;
+    private final int limit;
+    private final int fetchSize;
+    private final OperationMetrics stats;
+    private final OperationMetrics inserts;
+    private final OperationMetrics selects;
+    private final OperationMetrics fetches;
+    private final OperationMetrics updates;
+    private final Meter bytesRead;
+    private final Meter bytesWritten;
+
+    public ReRenderer(
+            MetricRegistry metrics,
+            Storage storage,
+            Engine engine,
+            Pacer pacer,
+            long numRerenders,
+            Distribution keys,
+            int partOffset,
+            Distribution revisions,
+            int revOffset,
+            ValueGenerator values,
+            int timeToLive,
+            int limit,
+            int fetchSize) {
+        super(engine, pacer);
+        this.storage = checkNotNull(storage);
+        this.numRerenders = numRerenders;
+        this.keys = checkNotNull(keys);
+        this.partitionStart = partOffset;
+        this.revisions = checkNotNull(revisions);
+        this.revisionStart = revOffset;
+        this.values = checkNotNull(values);
+        this.timeToLive = timeToLive;
+        this.limit = limit;
+        this.fetchSize = fetchSize;
+
+        // Failures are logged by the stage they occurred in
+        this.stats = new OperationMetrics(metrics, name(ReRenderer.class, "rerenders"), null);
+        this.inserts = new OperationMetrics(metrics, name(ReRenderer.class, "inserts"), LOG);
+        this.selects = new OperationMetrics(metrics, name(ReRenderer.class, "selects"), LOG);
+        this.fetches = new OperationMetrics(metrics, name(ReRenderer.class, "fetches"), LOG);
+        this.updates = new OperationMetrics(metrics, name(ReRenderer.class, "updates"), LOG);
+        this.bytesRead = metrics.meter(name(ReRenderer.class, "bytes", "read"));
+        this.bytesWritten = metrics.meter(name(ReRenderer.class, "bytes", "written"));
+    }
+
+    @Override
+    protected long count() {
+        return this.numRerenders;
+    }
+
+    @Override
+    protected void issue(long sequence, long intendedStartNanos) {
+        final String key = Writer.keyName(this.partitionStart + this.keys.next());
+        final int rev = this.revisionStart + this.revisions.next();
+        this.engine.submit(key, () -> rerender(key, rev, intendedStartNanos), this.stats.since(intendedStartNanos));
+    }
+
+    private ListenableFuture<Object> rerender(String key, int rev, long intendedStartNanos) {
+        final UUID tid = UUIDs.timeBased();
+        final ByteBuffer value = this.values.next();
+
+        ListenableFuture<Void> insert = stage(
+                this.inserts,
+                intendedStartNanos,
+                this.storage.write(new Cell(key, rev, tid, value, 0)));
 
-        String key = Writer.keyName(Integer.MAX_VALUE);
-        int rev = Integer.MAX_VALUE;
-        byte[] value = Util.randomBytes(this.valueSizeMB * 1024 * 1024);
-
-        try (CassandraSession session = new CassandraSession(this.cassandraContact)) {
-            PreparedStatement insertStatement = session.prepare(INSERT);
-            PreparedStatement selectStatement = session.prepare(SELECT);
-            PreparedStatement updateStatement = session.prepare(UPDATE);
-
-            Statement query = null;
-            UUID tid = null;
-            for (int i = 0; i < this.numRenders; i++) {
-                LOG.debug("Inserting 20MB value into key={}, rev={}", key, rev);
-                tid = UUIDs.timeBased();
-                query = insertStatement.bind(key, rev, tid, ByteBuffer.wrap(value));
-                session.execute(query);
-                LOG.debug("Inserted as tid={}", tid);
-
-                LOG.debug("Updating...");
-                int count = 0;
-                query = selectStatement.bind(key, rev, tid);
-                for (Row row : session.execute(query)) {
-                    count += 1;
-                    LOG.debug("Updating entry for TID={}", row.getUUID("tid"));
-                    session.execute(updateStatement.bind(300, row.getBytes("value"), key, rev, tid));
-                }
-                LOG.debug("Update processed {} records", count);
+        return Futures.transform(insert, (AsyncFunction<Void, Object>) inserted -> {
+            this.bytesWritten.mark(value.remaining());
+            Slice older = new Slice(key).rev(rev).tidBefore(tid).limit(this.limit).fetchSize(this.fetchSize);
+            ListenableFuture<Storage.Page> select = stage(
+                    this.selects,
+                    System.nanoTime(),
+                    this.storage.read(older.withoutValues()));
+            return Futures.transform(select, (AsyncFunction<Storage.Page, Object>) page -> expire(key, rev, page));
+        });
+    }
+
+    /** Applies a TTL to the renders in the current page of results, and then moves on to the next page. */
+    private ListenableFuture<Object> expire(String key, int rev, Storage.Page results) {
+        List<ListenableFuture<Object>> pending = new ArrayList<>();
+        for (Cell cell : results.cells()) {
+            if (cell.ttl() == 0) {
+                pending.add(expire(key, rev, cell.tid()));
             }
         }
+        // Only the tids were needed
+        results.release();
+
+        ListenableFuture<Object> page = Futures.transform(
+                Futures.allAsList(pending),
+                (AsyncFunction<List<Object>, Object>) done -> Futures.immediateFuture(null));
+        if (results.isLast()) {
+            return page;
+        }
+
+        return Futures.transform(page, (AsyncFunction<Object, Object>) done -> {
+            ListenableFuture<Storage.Page> next = stage(this.selects, System.nanoTime(), results.next());
+            return Futures.transform(next, (AsyncFunction<Storage.Page, Object>) more -> expire(key, rev, more));
+        });
+    }
+
+    private ListenableFuture<Object> expire(String key, int rev, UUID tid) {
+        ListenableFuture<Storage.Page> fetch = stage(
+                this.fetches,
+                System.nanoTime(),
+                this.storage.read(new Slice(key).rev(rev).tid(tid)));
+
+        return Futures.transform(fetch, (AsyncFunction<Storage.Page, Object>) results -> {
+            if (results.cells().isEmpty()) {
+                // Expired, or deleted, in the meantime
+                results.release();
+                return Futures.immediateFuture(null);
+            }
+
+            ByteBuffer value = results.cells().get(0).value();
+            this.bytesRead.mark(value.remaining());
+            ListenableFuture<Void> update = stage(
+                    this.updates,
+                    System.nanoTime(),
+                    this.storage.write(new Cell(key, rev, tid, value, this.timeToLive)));
+            // Once the value has been written, or failed to be
+            update.addListener(results::release, MoreExecutors.directExecutor());
+            return Futures.transform(update, (AsyncFunction<Void, Object>) updated -> {
+                this.bytesWritten.mark(value.remaining());
+                return Futures.immediateFuture(null);
+            });
+        });
+    }
+
+    private static <T> ListenableFuture<T> stage(OperationMetrics stats, long startNanos, ListenableFuture<T> future) {
+        Futures.addCallback(future, stats.since(startNanos));
+        return future;
     }
 
+    /** Equivalent to {@code krv-simulator rerender ARGS...}. */
     public static void main(String... args) throws Exception {
-        SingleCommand<ReRenderer> parser = SingleCommand.singleCommand(ReRenderer.class);
-        ReRenderer command = parser.parse(args);
-        command.execute();
+        Main.main(ObjectArrays.concat("rerender", args));
     }
 
 }
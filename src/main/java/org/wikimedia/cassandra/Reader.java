@@ -1,105 +1,232 @@
 package org.wikimedia.cassandra;
 
 import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static org.wikimedia.cassandra.CassandraSession.KEYSPACE;
-import static org.wikimedia.cassandra.CassandraSession.TABLE;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.Statement;
-import com.datastax.driver.core.exceptions.NoHostAvailableException;
-import com.datastax.driver.core.exceptions.QueryExecutionException;
 import com.github.rvesse.airline.annotations.Command;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
+/**
+ * Reads partitions with a weighted mix of {@link Query queries}, each of one {@link Shape}, and with its own page size,
+ * limits, and projection (with or without values). Each shape's reads are registered as
+ * {@code Writer.selects.<shape>.*}, with the rows and bytes (of values) they return as {@code .rows} and
+ * {@code .bytes}.
+ */
 @Command(name = "read", description = "Read data")
-public class Reader {
-    private static final String QUERY = String.format("SELECT rev,tid,value FROM %s.%s WHERE key = ?", KEYSPACE, TABLE);
+public class Reader extends Workload {
     private static final Logger LOG = LoggerFactory.getLogger(Reader.class);
 
-    private final CassandraSession session;
-    private final int concurrency;
-    private final int numPartitions;
-    private final int partitionStart;
-    private final int queueSize;
-    private final PreparedStatement prepared;
-    private final ExecutorService executor;
-    private final Meter attempts;
-    private final Meter failures;
-
-    public Reader(MetricRegistry metrics, CassandraSession session, int concurrency, int numPartitions, int partOffset) {
-        this.concurrency = concurrency;
-        this.session = checkNotNull(session);
-        this.numPartitions = numPartitions;
-        this.partitionStart = partOffset;
+    /** The shapes of query made of a partition, in its clustering order ({@code rev DESC, tid DESC}). */
+    public enum Shape {
+        /** The latest render of the latest revision. */
+        LATEST(false, 1),
+        /** The latest render of a revision. */
+        REVISION(true, 1),
+        /** Every render of a revision. */
+        RENDERS(true, 0),
+        /** The latest render of each of the latest revisions (a listing of revisions), without values. */
+        LISTING(false, 10),
+        /** The whole partition. */
+        SCAN(false, 0);
 
-        this.queueSize = this.concurrency * 2;
-        this.prepared = session.prepare(QUERY);
-        this.attempts = metrics.meter(name(Writer.class, "selects", "attempted"));
-        this.failures = metrics.meter(name(Writer.class, "selects", "failed"));
+        final boolean revision;
+        final int limit;
 
-        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(this.concurrency * 2);
+        Shape(boolean revision, int limit) {
+            this.revision = revision;
+            this.limit = limit;
+        }
 
-        metrics.register(name(Writer.class, "selects", "enqueued"), new Gauge<Integer>() {
-            @Override
-            public Integer getValue() {
-                return queue.size();
-            }
-        });
+        public static Shape parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
 
-        this.executor = new ThreadPoolExecutor(
-                this.concurrency,
-                this.concurrency,
-                30,
-                TimeUnit.SECONDS,
-                queue,
-                new ThreadPoolExecutor.CallerRunsPolicy());
+        String metricName() {
+            return name().toLowerCase();
+        }
     }
 
-    public void execute() {
-        for (int i = this.partitionStart; i < (this.numPartitions + this.partitionStart); i++) {
-            final String key = Writer.keyName(i);
-            executor.submit(() -> {
-                Statement statement = null;
-                try {
-                    statement = this.prepared.bind(key);
-                    this.session.execute(statement);
-                    this.attempts.mark();
-                }
-                catch (NoHostAvailableException | QueryExecutionException e) {
-                    LOG.warn(e.getMessage());
-                    this.failures.mark();
-                }
-                catch (Exception e) {
-                    LOG.error("Unable to execute statement: \"{}\"", statement, e);
-                    this.failures.mark();
-                }
-            });
+    /** A shape of query, and how it is read: its weight among the others, page size, limits and projection. */
+    public static class Query {
+        final Shape shape;
+        final double weight;
+        int fetchSize;
+        int limit;
+        int pages;
+        boolean values;
+
+        public Query(Shape shape, double weight) {
+            checkArgument(weight > 0, "Weights must be greater than zero");
+            this.shape = checkNotNull(shape);
+            this.weight = weight;
+            this.limit = shape.limit;
+            this.values = shape != Shape.LISTING;
         }
-        LOG.info("All inserts enqueued; Shutting down...");
-        executor.shutdown();
 
-        try {
-            // Block until any jobs on the queue have completed, or the timeout has expired.
-            if (!executor.awaitTermination(Math.max(this.queueSize, 180), TimeUnit.SECONDS)) {
-                LOG.warn("Timed out waiting for executor shutdown!");
+        /** Reads {@code fetchSize} rows per page (0 is the storage's default). */
+        public Query fetchSize(int fetchSize) {
+            checkArgument(fetchSize >= 0, "Fetch size must not be negative");
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        /** Reads at most {@code limit} rows (0 is unlimited); by default, the shape's own. */
+        public Query limit(int limit) {
+            checkArgument(limit >= 0, "Limit must not be negative");
+            this.limit = limit;
+            return this;
+        }
+
+        /** Reads at most {@code pages} pages (0 is every page). */
+        public Query pages(int pages) {
+            checkArgument(pages >= 0, "Pages must not be negative");
+            this.pages = pages;
+            return this;
+        }
+
+        /** Selects values, or only the keys and TTLs of rows; by default, values for every shape but listings. */
+        public Query values(boolean values) {
+            this.values = values;
+            return this;
+        }
+    }
+
+    private final Storage storage;
+    private final long numReads;
+    private final Distribution keys;
+    private final int partitionStart;
+    private final Distribution revisions;
+    private final int revisionStart;
+    private final Query[] queries;
+    private final double[] cumulative;
+    private final Stats[] stats;
+    private final TraceSampler traces;
+
+    public Reader(
+            MetricRegistry metrics,
+            Storage storage,
+            Engine engine,
+            Pacer pacer,
+            long numReads,
+            Distribution keys,
+            int partOffset,
+            Distribution revisions,
+            int revOffset,
+            List<Query> queries,
+            double traceProbability) {
+        super(engine, pacer);
+        checkArgument(!queries.isEmpty(), "At least one query is required");
+        this.storage = checkNotNull(storage);
+        this.numReads = numReads;
+        this.keys = checkNotNull(keys);
+        this.partitionStart = partOffset;
+        this.revisions = revisions;
+        this.revisionStart = revOffset;
+
+        this.queries = queries.toArray(new Query[0]);
+        this.cumulative = new double[this.queries.length];
+        this.stats = new Stats[this.queries.length];
+        double total = 0;
+        for (int i = 0; i < this.queries.length; i++) {
+            Query query = this.queries[i];
+            checkArgument(
+                    !query.shape.revision || revisions != null,
+                    "The %s shape requires a revision distribution",
+                    query.shape.metricName());
+            total += query.weight;
+            this.cumulative[i] = total;
+            this.stats[i] = new Stats(metrics, name(Writer.class, "selects", query.shape.metricName()));
+        }
+
+        this.traces = new TraceSampler(
+                traceProbability,
+                metrics.histogram(name(Writer.class, "selects", "live")),
+                metrics.histogram(name(Writer.class, "selects", "tombstones")),
+                metrics.meter(name(Writer.class, "selects", "traces", "dropped")));
+    }
+
+    @Override
+    protected long count() {
+        return this.numReads;
+    }
+
+    @Override
+    protected void issue(long sequence, long intendedStartNanos) {
+        int i = 0;
+        if (this.queries.length > 1) {
+            double choice = ThreadLocalRandom.current().nextDouble() * this.cumulative[this.cumulative.length - 1];
+            while (i < this.cumulative.length - 1 && choice >= this.cumulative[i]) {
+                i++;
             }
         }
-        catch (InterruptedException e) {
-            LOG.warn("Interrupted while waiting for executor shutdown", e);
+        final Query query = this.queries[i];
+        final Stats stats = this.stats[i];
+        final String key = Writer.keyName(this.partitionStart + this.keys.next());
+        final int rev = query.shape.revision ? this.revisionStart + this.revisions.next() : -1;
+        this.engine.submit(key, () -> read(query, stats, key, rev), stats.operations.since(intendedStartNanos));
+    }
+
+    private ListenableFuture<Storage.Page> read(Query query, Stats stats, String key, int rev) {
+        Slice slice = new Slice(key).limit(query.limit).fetchSize(query.fetchSize);
+        if (query.shape.revision) {
+            slice.rev(rev);
+        }
+        if (query.shape == Shape.LISTING) {
+            slice.latestRenders();
+        }
+        if (!query.values) {
+            slice.withoutValues();
         }
+        if (!this.traces.sample()) {
+            return Storage.released(pages(this.storage.read(slice), stats, query.pages));
+        }
+        ListenableFuture<Storage.Page> future = this.storage.read(slice.traced());
+        Futures.addCallback(future, this.traces);
+        return Storage.released(pages(future, stats, query.pages));
+    }
+
+    /** Counts the rows and bytes of each page, and fetches the next, until the last (or {@code pages} of them). */
+    private static ListenableFuture<Storage.Page> pages(ListenableFuture<Storage.Page> page, Stats stats, int pages) {
+        return Futures.transform(page, (AsyncFunction<Storage.Page, Storage.Page>) fetched -> {
+            long bytes = 0;
+            for (Cell cell : fetched.cells()) {
+                ByteBuffer value = cell.value();
+                bytes += value != null ? value.remaining() : 0;
+            }
+            stats.rows.mark(fetched.cells().size());
+            stats.bytes.mark(bytes);
+
+            if (fetched.isLast() || pages == 1) {
+                return Futures.immediateFuture(fetched);
+            }
+            fetched.release();
+            return pages(fetched.next(), stats, pages - 1);
+        });
+    }
 
+    /** The metrics of one query: its reads, and the rows and bytes they return. */
+    private static class Stats {
+        final OperationMetrics operations;
+        final Meter rows;
+        final Meter bytes;
+
+        Stats(MetricRegistry metrics, String name) {
+            this.operations = new OperationMetrics(metrics, name, LOG);
+            this.rows = metrics.meter(name(name, "rows"));
+            this.bytes = metrics.meter(name(name, "bytes"));
+        }
     }
 
 }
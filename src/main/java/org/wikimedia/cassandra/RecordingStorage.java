@@ -0,0 +1,137 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Records every request made of another {@link Storage} to a {@link RequestLog}, for {@link Replayer}. Cells written
+ * without a tid are given one here (rather than by the storage), so that requests which refer to it replay faithfully.
+ */
+public class RecordingStorage implements Storage {
+    private final Storage storage;
+    private final RequestLog log;
+
+    public RecordingStorage(Storage storage, RequestLog log) {
+        this.storage = checkNotNull(storage);
+        this.log = checkNotNull(log);
+    }
+
+    /** Returns the storage being recorded. */
+    Storage storage() {
+        return this.storage;
+    }
+
+    @Override
+    public ListenableFuture<Void> write(Cell cell) {
+        long start = System.nanoTime();
+        Cell identified = cell.identified();
+        long record = this.log.write(start, false, Collections.singletonList(identified));
+        return recorded(record, start, this.storage.write(identified));
+    }
+
+    @Override
+    public ListenableFuture<Void> write(List<Cell> cells) {
+        long start = System.nanoTime();
+        List<Cell> identified = new ArrayList<>(cells.size());
+        for (Cell cell : cells) {
+            identified.add(cell.identified());
+        }
+        long record = this.log.write(start, true, identified);
+        return recorded(record, start, this.storage.write(identified));
+    }
+
+    @Override
+    public ListenableFuture<Storage.Page> read(Slice slice) {
+        long start = System.nanoTime();
+        long record = this.log.read(start, slice);
+        return Futures.transform(
+                recorded(record, start, this.storage.read(slice)),
+                (AsyncFunction<Storage.Page, Storage.Page>) page -> Futures.immediateFuture(new Page(record, page)));
+    }
+
+    @Override
+    public ListenableFuture<Void> delete(Slice slice) {
+        long start = System.nanoTime();
+        long record = this.log.delete(start, slice);
+        return recorded(record, start, this.storage.delete(slice));
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            this.storage.close();
+        }
+        finally {
+            this.log.close();
+        }
+    }
+
+    private <T> ListenableFuture<T> recorded(long record, long start, ListenableFuture<T> future) {
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                RecordingStorage.this.log.completed(record, start);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Recorded as failed (the initial latency of -1)
+            }
+        });
+        return future;
+    }
+
+    /** Counts each further page fetched against the read's record. */
+    private class Page implements Storage.Page {
+        private final long record;
+        private final Storage.Page page;
+
+        Page(long record, Storage.Page page) {
+            this.record = record;
+            this.page = page;
+        }
+
+        @Override
+        public List<Cell> cells() {
+            return this.page.cells();
+        }
+
+        @Override
+        public boolean isLast() {
+            return this.page.isLast();
+        }
+
+        @Override
+        public ListenableFuture<Storage.Page> next() {
+            RecordingStorage.this.log.paged(this.record);
+            return Futures.transform(
+                    this.page.next(),
+                    (AsyncFunction<Storage.Page, Storage.Page>) next -> Futures
+                            .immediateFuture(new Page(this.record, next)));
+        }
+
+        @Override
+        public Trace trace() {
+            return this.page.trace();
+        }
+
+        @Override
+        public int dropped() {
+            return this.page.dropped();
+        }
+
+        @Override
+        public void release() {
+            this.page.release();
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Replays the requests of a {@link RequestLog}, in order, each at the time it was originally issued (relative to the
+ * first), scaled by {@code speed}; a speed of 0 replays them as quickly as the engine allows. Writes carry values of
+ * the recorded sizes, and reads fetch as many pages as they originally did.
+ */
+public class Replayer extends Workload {
+    private static final Logger LOG = LoggerFactory.getLogger(Replayer.class);
+
+    private final Storage storage;
+    private final RequestLogCursor log;
+    private final ValueGenerator values;
+    private final OperationMetrics writes;
+    private final OperationMetrics batches;
+    private final OperationMetrics reads;
+    private final OperationMetrics deletes;
+
+    public Replayer(
+            MetricRegistry metrics,
+            Storage storage,
+            Engine engine,
+            RequestLogCursor log,
+            double speed,
+            double compressibility) throws IOException {
+        super(engine, new Schedule(log, speed, Latency.register(metrics, name(Replayer.class, "requests", "lag"))));
+        this.storage = checkNotNull(storage);
+        this.log = log;
+        this.values = ValueGenerator.create("fixed:" + Math.max(1, log.maxValueSize()), compressibility, 0);
+        this.writes = new OperationMetrics(metrics, name(Replayer.class, "writes"), LOG);
+        this.batches = new OperationMetrics(metrics, name(Replayer.class, "batches"), LOG);
+        this.reads = new OperationMetrics(metrics, name(Replayer.class, "reads"), LOG);
+        this.deletes = new OperationMetrics(metrics, name(Replayer.class, "deletes"), LOG);
+    }
+
+    @Override
+    protected long count() {
+        return this.log.records();
+    }
+
+    /** Issues the current record of the log (moved to by the pacer). */
+    @Override
+    protected void issue(long sequence, long intendedStartNanos) {
+        String key = this.log.key();
+        switch (this.log.type()) {
+            case RequestLog.WRITE: {
+                Cell cell = this.log.cells(this.values).get(0);
+                this.engine.submit(key, () -> this.storage.write(cell), this.writes.since(intendedStartNanos));
+                break;
+            }
+            case RequestLog.BATCH: {
+                List<Cell> cells = this.log.cells(this.values);
+                this.engine.submit(
+                        key,
+                        () -> this.storage.write(cells),
+                        this.batches.since(intendedStartNanos, this.writes, cells.size()));
+                break;
+            }
+            case RequestLog.READ: {
+                Slice slice = this.log.slice();
+                int pages = this.log.pages();
+                this.engine.submit(key, () -> read(slice, pages), this.reads.since(intendedStartNanos));
+                break;
+            }
+            case RequestLog.DELETE: {
+                Slice slice = this.log.slice();
+                this.engine.submit(key, () -> this.storage.delete(slice), this.deletes.since(intendedStartNanos));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown record type: " + this.log.type());
+        }
+    }
+
+    private ListenableFuture<Storage.Page> read(Slice slice, int pages) {
+        return Storage.released(pages(this.storage.read(slice), pages - 1));
+    }
+
+    private static ListenableFuture<Storage.Page> pages(ListenableFuture<Storage.Page> page, int more) {
+        if (more <= 0) {
+            return page;
+        }
+        return Futures.transform(page, (AsyncFunction<Storage.Page, Storage.Page>) fetched -> {
+            if (fetched.isLast()) {
+                return Futures.immediateFuture(fetched);
+            }
+            fetched.release();
+            return pages(fetched.next(), more - 1);
+        });
+    }
+
+    /** Moves the log on to the next record, and waits until it is due. */
+    private static class Schedule extends Pacer {
+        private final RequestLogCursor log;
+        private final double speed;
+        private final Latency lag;
+        private long origin = -1;
+        private long first;
+
+        Schedule(RequestLogCursor log, double speed, Latency lag) {
+            this.log = checkNotNull(log);
+            this.speed = speed;
+            this.lag = lag;
+        }
+
+        @Override
+        public long acquire() {
+            try {
+                checkState(this.log.next(), "Request log ended early");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (this.speed <= 0) {
+                return System.nanoTime();
+            }
+
+            if (this.origin < 0) {
+                this.origin = System.nanoTime();
+                this.first = this.log.timestampNanos();
+            }
+            long intended = this.origin + (long) ((this.log.timestampNanos() - this.first) / this.speed);
+            parkUntil(intended);
+            this.lag.record(intended);
+            return intended;
+        }
+    }
+
+}
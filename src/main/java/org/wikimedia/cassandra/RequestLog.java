@@ -0,0 +1,227 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only log of storage requests, in a memory-mapped file; read back by {@link RequestLogCursor}.
+ * <p>
+ * The file is a header, followed by segments of {@link #SEGMENT_SIZE} bytes that are mapped as they are needed.
+ * Records never span segments; a record type of 0 marks the unused remainder of one. Appends reserve space for the
+ * whole record (lock-free), so concurrent requests are logged in the order they were issued, and a request's latency
+ * (and, for reads, the number of pages fetched) are filled in when it completes. Each record is:
+ *
+ * <pre>
+ * byte   type (WRITE, BATCH, READ or DELETE)
+ * byte   flags (REV, REV_BEFORE, TID, TID_BEFORE, VALUES, TRACED, LATEST_RENDERS)
+ * short  pages fetched (reads)
+ * int    latency, in microseconds (-1 if failed, or incomplete)
+ * long   time issued, in nanoseconds since the log was opened
+ * short  key length, followed by the key (UTF-8)
+ * WRITE and BATCH:
+ *   short  cells, each of: int rev, byte has tid, [tid], int value size, int ttl
+ * READ and DELETE:
+ *   [int rev (REV or REV_BEFORE)], [tid (TID or TID_BEFORE)], int limit, int fetch size
+ * </pre>
+ *
+ * where a tid is two longs (most, then least, significant bits).
+ */
+public class RequestLog implements AutoCloseable {
+    static final long MAGIC = 0x4b52565f52455153L;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    static final byte WRITE = 1;
+    static final byte BATCH = 2;
+    static final byte READ = 3;
+    static final byte DELETE = 4;
+
+    static final int REV = 1;
+    static final int REV_BEFORE = 2;
+    static final int TID = 4;
+    static final int TID_BEFORE = 8;
+    static final int VALUES = 16;
+    static final int TRACED = 32;
+    static final int LATEST_RENDERS = 64;
+
+    static final int PAGES_OFFSET = 2;
+    static final int LATENCY_OFFSET = 4;
+
+    private final FileChannel channel;
+    private final ConcurrentMap<Long, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+    private final AtomicLong position = new AtomicLong(HEADER_SIZE);
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicInteger maxValueSize = new AtomicInteger();
+    private final long origin = System.nanoTime();
+
+    public RequestLog(Path path) throws IOException {
+        this.channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Appends a write (or, if {@code batch}, a batch write) of {@code cells}, issued at {@code startNanos}, and returns
+     * the record's position.
+     */
+    long write(long startNanos, boolean batch, List<Cell> cells) {
+        checkArgument(cells.size() <= Short.MAX_VALUE, "Batch too large to log: %s cells", cells.size());
+        byte[] key = cells.get(0).key().getBytes(StandardCharsets.UTF_8);
+        int size = 18 + key.length + 2;
+        for (Cell cell : cells) {
+            size += cell.tid() != null ? 29 : 13;
+        }
+
+        long record = reserve(size);
+        ByteBuffer buffer = header(record, batch ? BATCH : WRITE, 0, startNanos, key);
+        buffer.putShort((short) cells.size());
+        for (Cell cell : cells) {
+            int valueSize = cell.value() != null ? cell.value().remaining() : 0;
+            buffer.putInt(cell.rev());
+            buffer.put((byte) (cell.tid() != null ? 1 : 0));
+            if (cell.tid() != null) {
+                putTid(buffer, cell.tid());
+            }
+            buffer.putInt(valueSize);
+            buffer.putInt(cell.ttl());
+            this.maxValueSize.accumulateAndGet(valueSize, Math::max);
+        }
+        return record;
+    }
+
+    /** Appends a read of {@code slice}, issued at {@code startNanos}, and returns the record's position. */
+    long read(long startNanos, Slice slice) {
+        return slice(startNanos, READ, slice);
+    }
+
+    /** Appends a deletion of {@code slice}, issued at {@code startNanos}, and returns the record's position. */
+    long delete(long startNanos, Slice slice) {
+        return slice(startNanos, DELETE, slice);
+    }
+
+    /** Records the latency of a request that completed successfully. */
+    void completed(long record, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        segment(record).putInt(offset(record) + LATENCY_OFFSET, (int) Math.min(Integer.MAX_VALUE, micros));
+    }
+
+    /** Records the fetch of another page of a read; pages of a read are fetched one at a time. */
+    void paged(long record) {
+        ByteBuffer segment = segment(record);
+        int offset = offset(record) + PAGES_OFFSET;
+        segment.putShort(offset, (short) Math.min(Short.MAX_VALUE, segment.getShort(offset) + 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        long end = this.position.get();
+        ByteBuffer header = segment(0);
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, SEGMENT_SIZE);
+        header.putLong(16, this.records.get());
+        header.putInt(24, this.maxValueSize.get());
+        header.putLong(32, end);
+        for (MappedByteBuffer segment : this.segments.values()) {
+            segment.force();
+        }
+        this.channel.truncate(end);
+        this.channel.close();
+    }
+
+    private long slice(long startNanos, byte type, Slice slice) {
+        byte[] key = slice.key.getBytes(StandardCharsets.UTF_8);
+        int flags = (slice.rev != null ? REV : 0)
+                | (slice.revBefore != null ? REV_BEFORE : 0)
+                | (slice.tid != null ? TID : 0)
+                | (slice.tidBefore != null ? TID_BEFORE : 0)
+                | (slice.values ? VALUES : 0)
+                | (slice.traced ? TRACED : 0)
+                | (slice.latestRenders ? LATEST_RENDERS : 0);
+        int size = 18 + key.length + 8;
+        size += (flags & (REV | REV_BEFORE)) != 0 ? 4 : 0;
+        size += (flags & (TID | TID_BEFORE)) != 0 ? 16 : 0;
+
+        long record = reserve(size);
+        ByteBuffer buffer = header(record, type, flags, startNanos, key);
+        if (slice.rev != null || slice.revBefore != null) {
+            buffer.putInt(slice.rev != null ? slice.rev : slice.revBefore);
+        }
+        if (slice.tid != null || slice.tidBefore != null) {
+            putTid(buffer, slice.tid != null ? slice.tid : slice.tidBefore);
+        }
+        buffer.putInt(slice.limit);
+        buffer.putInt(slice.fetchSize);
+        return record;
+    }
+
+    private ByteBuffer header(long record, byte type, int flags, long startNanos, byte[] key) {
+        ByteBuffer buffer = segment(record).duplicate();
+        buffer.position(offset(record));
+        buffer.put(type);
+        buffer.put((byte) flags);
+        buffer.putShort((short) (type == READ ? 1 : 0));
+        buffer.putInt(-1);
+        buffer.putLong(startNanos - this.origin);
+        buffer.putShort((short) key.length);
+        buffer.put(key);
+        this.records.incrementAndGet();
+        return buffer;
+    }
+
+    /** Returns the position of {@code size} bytes, in a single segment. */
+    private long reserve(int size) {
+        checkArgument(size <= SEGMENT_SIZE - HEADER_SIZE, "Record too large to log: %s bytes", size);
+        while (true) {
+            long current = this.position.get();
+            long start = current;
+            long segmentEnd = (start / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+            if (start + size > segmentEnd) {
+                // The rest of this segment is left zeroed (a record type of 0)
+                start = segmentEnd;
+            }
+            if (this.position.compareAndSet(current, start + size)) {
+                return start;
+            }
+        }
+    }
+
+    private MappedByteBuffer segment(long position) {
+        return this.segments.computeIfAbsent(position / SEGMENT_SIZE, index -> {
+            try {
+                return this.channel.map(FileChannel.MapMode.READ_WRITE, index * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static int offset(long position) {
+        return (int) (position % SEGMENT_SIZE);
+    }
+
+    private static void putTid(ByteBuffer buffer, UUID tid) {
+        buffer.putLong(tid.getMostSignificantBits());
+        buffer.putLong(tid.getLeastSignificantBits());
+    }
+
+}
@@ -0,0 +1,197 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reads a {@link RequestLog} from start to end, one record at a time. Only the current segment is mapped, so logs of
+ * any size are read in bounded memory. Not thread-safe.
+ */
+public class RequestLogCursor implements AutoCloseable {
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final long records;
+    private final int maxValueSize;
+    private final long end;
+
+    private ByteBuffer segment;
+    private long segmentStart;
+    private long read;
+
+    // The current record
+    private byte type;
+    private int flags;
+    private int pages;
+    private int latencyMicros;
+    private long timestampNanos;
+    private String key;
+    private int[] revs = new int[1];
+    private UUID[] tids = new UUID[1];
+    private int[] valueSizes = new int[1];
+    private int[] ttls = new int[1];
+    private int cells;
+    private int limit;
+    private int fetchSize;
+
+    public RequestLogCursor(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(RequestLog.HEADER_SIZE);
+        while (header.hasRemaining() && this.channel.read(header) >= 0) {
+            // Keep reading
+        }
+        header.flip();
+        checkArgument(
+                header.remaining() == RequestLog.HEADER_SIZE && header.getLong(0) == RequestLog.MAGIC,
+                "Not a (complete) request log: %s",
+                path);
+        checkArgument(header.getInt(8) == RequestLog.VERSION, "Unsupported request log version: %s", header.getInt(8));
+        this.segmentSize = header.getInt(12);
+        this.records = header.getLong(16);
+        this.maxValueSize = header.getInt(24);
+        this.end = header.getLong(32);
+        map(0);
+        this.segment.position(RequestLog.HEADER_SIZE);
+    }
+
+    /** Returns the number of records in the log. */
+    public long records() {
+        return this.records;
+    }
+
+    /** Returns the size of the largest value written. */
+    public int maxValueSize() {
+        return this.maxValueSize;
+    }
+
+    /** Moves to the next record, returning false at the end of the log. */
+    public boolean next() throws IOException {
+        if (this.read == this.records) {
+            return false;
+        }
+        if (!this.segment.hasRemaining() || this.segment.get(this.segment.position()) == 0) {
+            map(this.segmentStart + this.segmentSize);
+        }
+
+        ByteBuffer buffer = this.segment;
+        this.type = buffer.get();
+        this.flags = buffer.get();
+        this.pages = buffer.getShort();
+        this.latencyMicros = buffer.getInt();
+        this.timestampNanos = buffer.getLong();
+        byte[] key = new byte[buffer.getShort()];
+        buffer.get(key);
+        this.key = new String(key, StandardCharsets.UTF_8);
+
+        if (this.type == RequestLog.WRITE || this.type == RequestLog.BATCH) {
+            this.cells = buffer.getShort();
+            if (this.revs.length < this.cells) {
+                this.revs = new int[this.cells];
+                this.tids = new UUID[this.cells];
+                this.valueSizes = new int[this.cells];
+                this.ttls = new int[this.cells];
+            }
+            for (int i = 0; i < this.cells; i++) {
+                this.revs[i] = buffer.getInt();
+                this.tids[i] = buffer.get() != 0 ? new UUID(buffer.getLong(), buffer.getLong()) : null;
+                this.valueSizes[i] = buffer.getInt();
+                this.ttls[i] = buffer.getInt();
+            }
+        }
+        else {
+            checkState(this.type == RequestLog.READ || this.type == RequestLog.DELETE, "Corrupt record: %s", this.type);
+            this.cells = 0;
+            this.revs[0] = (this.flags & (RequestLog.REV | RequestLog.REV_BEFORE)) != 0 ? buffer.getInt() : 0;
+            this.tids[0] = (this.flags & (RequestLog.TID | RequestLog.TID_BEFORE)) != 0
+                    ? new UUID(buffer.getLong(), buffer.getLong())
+                    : null;
+            this.limit = buffer.getInt();
+            this.fetchSize = buffer.getInt();
+        }
+        this.read++;
+        return true;
+    }
+
+    /** Returns the type of the current record, one of the record types of {@link RequestLog}. */
+    public byte type() {
+        return this.type;
+    }
+
+    /** Returns the number of pages of a read that were fetched. */
+    public int pages() {
+        return this.pages;
+    }
+
+    /** Returns the recorded latency, in microseconds, or -1 if the request failed (or was incomplete). */
+    public int latencyMicros() {
+        return this.latencyMicros;
+    }
+
+    /** Returns the time the request was issued, in nanoseconds since the log was opened. */
+    public long timestampNanos() {
+        return this.timestampNanos;
+    }
+
+    public String key() {
+        return this.key;
+    }
+
+    /** Returns the cells of a write, with values of the recorded sizes drawn from {@code values}. */
+    public List<Cell> cells(ValueGenerator values) {
+        List<Cell> cells = new ArrayList<>(this.cells);
+        for (int i = 0; i < this.cells; i++) {
+            ByteBuffer value = this.valueSizes[i] > 0 ? values.next(this.valueSizes[i]) : ByteBuffer.allocate(0);
+            cells.add(new Cell(this.key, this.revs[i], this.tids[i], value, this.ttls[i]));
+        }
+        return cells;
+    }
+
+    /** Returns the slice of a read or deletion. */
+    public Slice slice() {
+        Slice slice = new Slice(this.key);
+        if ((this.flags & RequestLog.REV) != 0) {
+            slice.rev(this.revs[0]);
+        }
+        if ((this.flags & RequestLog.REV_BEFORE) != 0) {
+            slice.revBefore(this.revs[0]);
+        }
+        if ((this.flags & RequestLog.TID) != 0) {
+            slice.tid(this.tids[0]);
+        }
+        if ((this.flags & RequestLog.TID_BEFORE) != 0) {
+            slice.tidBefore(this.tids[0]);
+        }
+        if ((this.flags & RequestLog.VALUES) == 0) {
+            slice.withoutValues();
+        }
+        if ((this.flags & RequestLog.TRACED) != 0) {
+            slice.traced();
+        }
+        if ((this.flags & RequestLog.LATEST_RENDERS) != 0) {
+            slice.latestRenders();
+        }
+        return slice.limit(this.limit).fetchSize(this.fetchSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private void map(long start) throws IOException {
+        checkState(start < this.end, "Request log truncated after %s of %s records", this.read, this.records);
+        this.segmentStart = start;
+        long size = Math.min(this.segmentSize, this.end - start);
+        this.segment = this.channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+}
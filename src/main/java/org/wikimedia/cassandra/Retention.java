@@ -0,0 +1,189 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Culls old revisions and renders, the way RESTBase does. Each operation applies a retention policy to one partition
+ * (or, when keeping renders, to one revision of a partition):
+ * <ul>
+ * <li>{@link Policy#REVISIONS}: keep the latest {@code keep} revisions, deleting those before</li>
+ * <li>{@link Policy#RENDERS}: keep the latest {@code keep} renders of a revision, deleting those before</li>
+ * </ul>
+ * Deletions are issued either as a single range deletion, or as a deletion of each row (found by paging through them
+ * {@code fetchSize} at a time).
+ */
+public class Retention extends Workload {
+    private static final Logger LOG = LoggerFactory.getLogger(Retention.class);
+
+    public enum Policy {
+        REVISIONS, RENDERS
+    }
+
+    private final Storage storage;
+    private final long numOperations;
+    private final Distribution keys;
+    private final int partitionStart;
+    private final Distribution revisions;
+    private final int revisionStart;
+    private final Policy policy;
+    private final int keep;
+    private final boolean rangeDeletes;
+    private final int fetchSize;
+    private final OperationMetrics stats;
+    private final OperationMetrics selects;
+    private final OperationMetrics deletes;
+    private final Meter rowsDeleted;
+
+    public Retention(
+            MetricRegistry metrics,
+            Storage storage,
+            Engine engine,
+            Pacer pacer,
+            long numOperations,
+            Distribution keys,
+            int partOffset,
+            Distribution revisions,
+            int revOffset,
+            Policy policy,
+            int keep,
+            boolean rangeDeletes,
+            int fetchSize) {
+        super(engine, pacer);
+        checkArgument(keep > 0, "Number of revisions or renders to keep must be greater than zero");
+        this.storage = checkNotNull(storage);
+        this.numOperations = numOperations;
+        this.keys = checkNotNull(keys);
+        this.partitionStart = partOffset;
+        this.revisions = checkNotNull(revisions);
+        this.revisionStart = revOffset;
+        this.policy = checkNotNull(policy);
+        this.keep = keep;
+        this.rangeDeletes = rangeDeletes;
+        this.fetchSize = fetchSize;
+
+        // Failures are logged by the stage they occurred in
+        this.stats = new OperationMetrics(metrics, name(Retention.class, "culls"), null);
+        this.selects = new OperationMetrics(metrics, name(Retention.class, "selects"), LOG);
+        this.deletes = new OperationMetrics(metrics, name(Retention.class, "deletes"), LOG);
+        this.rowsDeleted = metrics.meter(name(Retention.class, "rows", "deleted"));
+    }
+
+    @Override
+    protected long count() {
+        return this.numOperations;
+    }
+
+    @Override
+    protected void issue(long sequence, long intendedStartNanos) {
+        final String key = Writer.keyName(this.partitionStart + this.keys.next());
+        if (this.policy == Policy.REVISIONS) {
+            this.engine.submit(key, () -> cullRevisions(key), this.stats.since(intendedStartNanos));
+        }
+        else {
+            final int rev = this.revisionStart + this.revisions.next();
+            this.engine.submit(key, () -> cullRenders(key, rev), this.stats.since(intendedStartNanos));
+        }
+    }
+
+    private ListenableFuture<Object> cullRevisions(String key) {
+        ListenableFuture<Storage.Page> latest = select(new Slice(key).limit(1));
+        return Futures.transform(latest, (AsyncFunction<Storage.Page, Object>) results -> {
+            if (results.cells().isEmpty()) {
+                return Futures.immediateFuture(null);
+            }
+
+            int oldest = results.cells().get(0).rev() - this.keep + 1;
+            if (this.rangeDeletes) {
+                return delete(new Slice(key).revBefore(oldest), 0);
+            }
+            ListenableFuture<Storage.Page> rows = select(new Slice(key).revBefore(oldest).fetchSize(this.fetchSize));
+            return Futures.transform(rows, (AsyncFunction<Storage.Page, Object>) page -> deleteRows(key, page, 0));
+        });
+    }
+
+    private ListenableFuture<Object> cullRenders(String key, int rev) {
+        Slice select = new Slice(key).rev(rev);
+        if (this.rangeDeletes) {
+            // Only the oldest render to keep is needed
+            select.fetchSize(this.keep);
+            return Futures.transform(select(select), (AsyncFunction<Storage.Page, Object>) results -> {
+                if (results.cells().size() < this.keep) {
+                    return Futures.immediateFuture(null);
+                }
+                UUID oldest = results.cells().get(this.keep - 1).tid();
+                return delete(new Slice(key).rev(rev).tidBefore(oldest), 0);
+            });
+        }
+        select.fetchSize(this.fetchSize);
+        return Futures.transform(
+                select(select),
+                (AsyncFunction<Storage.Page, Object>) page -> deleteRows(key, page, this.keep));
+    }
+
+    /** Deletes each row in the current page of results, after skipping the first {@code skip}, and then pages on. */
+    private ListenableFuture<Object> deleteRows(String key, Storage.Page results, int skip) {
+        List<ListenableFuture<Object>> pending = new ArrayList<>();
+        int remaining = skip;
+        for (Cell cell : results.cells()) {
+            if (remaining > 0) {
+                remaining--;
+                continue;
+            }
+            pending.add(delete(new Slice(key).rev(cell.rev()).tid(cell.tid()), 1));
+        }
+
+        ListenableFuture<Object> page = Futures.transform(
+                Futures.allAsList(pending),
+                (AsyncFunction<List<Object>, Object>) done -> Futures.immediateFuture(null));
+        if (results.isLast()) {
+            return page;
+        }
+
+        final int skipped = remaining;
+        return Futures.transform(page, (AsyncFunction<Object, Object>) done -> {
+            ListenableFuture<Storage.Page> next = stage(this.selects, results.next());
+            return Futures
+                    .transform(next, (AsyncFunction<Storage.Page, Object>) more -> deleteRows(key, more, skipped));
+        });
+    }
+
+    private ListenableFuture<Storage.Page> select(Slice slice) {
+        return stage(this.selects, this.storage.read(slice.withoutValues()));
+    }
+
+    /** Executes a deletion, marking {@code rows} rows deleted (none, for a range). */
+    private ListenableFuture<Object> delete(Slice slice, int rows) {
+        ListenableFuture<Void> delete = stage(this.deletes, this.storage.delete(slice));
+        return Futures.transform(delete, (AsyncFunction<Void, Object>) deleted -> {
+            this.rowsDeleted.mark(rows);
+            return Futures.immediateFuture(null);
+        });
+    }
+
+    /** Parses a delete mode, one of {@code range} or {@code row}, returning true for range deletions. */
+    public static boolean rangeDeletes(String mode) {
+        checkArgument(mode.equals("range") || mode.equals("row"), "Unknown delete mode: %s", mode);
+        return mode.equals("range");
+    }
+
+    private static <T> ListenableFuture<T> stage(OperationMetrics stats, ListenableFuture<T> future) {
+        Futures.addCallback(future, stats.since(System.nanoTime()));
+        return future;
+    }
+
+}
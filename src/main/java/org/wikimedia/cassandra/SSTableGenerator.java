@@ -0,0 +1,215 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.io.sstable.CQLSSTableWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Throwables;
+
+/**
+ * Writes the data set of a {@link Writer} (with sequential keys) directly to SSTables of {@code krv_simulation.data},
+ * in {@code <directory>/krv_simulation/data}, for loading with {@code sstableloader}; no cluster is needed. Each
+ * thread writes its own contiguous range of the partitions.
+ * <p>
+ * Keys, revisions, TTLs and values are those the writer would have written with the same options; tids are time-based
+ * UUIDs generated here, rather than by the server, and TTLs run from when the SSTables are generated. The table,
+ * with its options, is that of {@code schema.cql}. Values may be
+ * written with the header of a {@link VerifyingStorage}, to be verified when read.
+ */
+public class SSTableGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(SSTableGenerator.class);
+    private static final long PROGRESS_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    static final String KEYSPACE = "krv_simulation";
+    static final String TABLE = "data";
+    private static final String CREATE_TABLE = String.format("CREATE TABLE %s.%s ", KEYSPACE, TABLE);
+    static final String INSERT = String
+            .format("INSERT INTO %s.%s (key, rev, tid, value) VALUES (?, ?, ?, ?) USING TTL ?", KEYSPACE, TABLE);
+
+    private final File directory;
+    private final int numPartitions;
+    private final int partitionStart;
+    private final int numRevisions;
+    private final int revisionStart;
+    private final int numRenders;
+    private final ValueGenerator values;
+    private final TtlPolicy ttls;
+    private final int bufferSizeMb;
+    private final boolean verify;
+    private final AtomicLong rows = new AtomicLong();
+
+    public SSTableGenerator(
+            File directory,
+            int numPartitions,
+            int partOffset,
+            int numRevisions,
+            int revOffset,
+            int numRenders,
+            ValueGenerator values,
+            TtlPolicy ttls,
+            int bufferSizeMb,
+            boolean verify) {
+        checkArgument(numPartitions > 0, "Number of partitions must be greater than zero");
+        checkArgument(numRevisions > 0 && numRenders > 0, "Revisions and renders must be greater than zero");
+        checkArgument(bufferSizeMb > 0, "Buffer size must be greater than zero");
+        this.directory = new File(new File(directory, KEYSPACE), TABLE);
+        this.numPartitions = numPartitions;
+        this.partitionStart = partOffset;
+        this.numRevisions = numRevisions;
+        this.revisionStart = revOffset;
+        this.numRenders = numRenders;
+        this.values = checkNotNull(values);
+        this.ttls = checkNotNull(ttls);
+        this.bufferSizeMb = bufferSizeMb;
+        this.verify = verify;
+    }
+
+    /** Generates the SSTables using {@code threads} threads, returning the number of rows written. */
+    public long generate(int threads) throws IOException, InterruptedException {
+        checkArgument(threads > 0, "Threads must be greater than zero");
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Unable to create " + this.directory);
+        }
+        String schema = schema();
+        threads = Math.min(threads, this.numPartitions);
+        long total = (long) this.numPartitions * this.numRevisions * this.numRenders;
+        LOG.info(
+                "Generating {} rows of {} partitions in {}, with {} threads",
+                total,
+                this.numPartitions,
+                this.directory,
+                threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> ranges = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int base = this.numPartitions / threads;
+                int remainder = this.numPartitions % threads;
+                int offset = i * base + Math.min(i, remainder);
+                int count = base + (i < remainder ? 1 : 0);
+                ranges.add(executor.submit(() -> generate(schema, offset, count)));
+            }
+            for (Future<?> range : ranges) {
+                while (true) {
+                    try {
+                        range.get(PROGRESS_NANOS, TimeUnit.NANOSECONDS);
+                        break;
+                    }
+                    catch (TimeoutException e) {
+                        progress(total, start);
+                    }
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        progress(total, start);
+        return this.rows.get();
+    }
+
+    /** Returns the {@code CREATE TABLE} statement of the data table in {@code schema.cql}, with its options. */
+    static String schema() throws IOException {
+        ByteBuffer bytes;
+        try (InputStream input = SSTableGenerator.class.getResourceAsStream("/schema.cql")) {
+            bytes = Util.bytes(input);
+        }
+        String cql = new String(bytes.array(), 0, bytes.remaining(), StandardCharsets.UTF_8);
+        for (String statement : cql.replaceAll("(?s)/\\*.*?\\*/", "").split(";")) {
+            statement = statement.trim().replaceAll("\\s+", " ");
+            if (statement.startsWith(CREATE_TABLE)) {
+                return statement;
+            }
+        }
+        throw new IllegalStateException("No table " + KEYSPACE + "." + TABLE + " in schema.cql");
+    }
+
+    /**
+     * Returns the default number of threads: one per core, but no more than half the heap can buffer (each buffers
+     * {@code bufferSizeMb}, and about as much again is taken by the writer).
+     */
+    static int defaultThreads(int bufferSizeMb) {
+        long perThread = 2L * bufferSizeMb * 1024 * 1024;
+        long fit = Runtime.getRuntime().maxMemory() / 2 / perThread;
+        return (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), fit));
+    }
+
+    /** Writes every row of partitions {@code offset} to {@code offset + count} (exclusive). */
+    private void generate(String schema, int offset, int count) {
+        CQLSSTableWriter writer = CQLSSTableWriter
+                .builder()
+                .inDirectory(this.directory)
+                .forTable(schema)
+                .using(INSERT)
+                .withBufferSizeInMB(this.bufferSizeMb)
+                .build();
+        try {
+            for (int p = offset; p < offset + count; p++) {
+                String key = Writer.keyName(this.partitionStart + p);
+                for (int i = 0; i < this.numRevisions; i++) {
+                    int rev = this.revisionStart + i;
+                    for (int render = 0; render < this.numRenders; render++) {
+                        int ttl = this.ttls.ttl(render, this.numRenders);
+                        UUID tid = UUIDs.timeBased();
+                        ByteBuffer value = this.values.next();
+                        if (this.verify) {
+                            value = VerifyingStorage.seal(key, rev, tid, ttl, VerifyingStorage.nextGeneration(), value);
+                        }
+                        writer.addRow(key, rev, tid, value, ttl);
+                    }
+                    this.rows.addAndGet(this.numRenders);
+                }
+            }
+        }
+        catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+        finally {
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void progress(long total, long start) {
+        long rows = this.rows.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info(String.format(
+                "Generated %d of %d rows (%.1f%%), %.1f rows/s",
+                rows,
+                total,
+                rows * 100.0 / total,
+                rows / seconds));
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.UUID;
+
+/**
+ * A contiguous range of one partition, in clustering order ({@code rev DESC, tid DESC}), to read or delete: the whole
+ * partition, the revisions before one, one revision, the renders of a revision before one, or a single render. For
+ * example, {@code new Slice(key).rev(rev).tidBefore(tid).limit(5)}.
+ */
+public class Slice {
+    final String key;
+    Integer rev;
+    Integer revBefore;
+    UUID tid;
+    UUID tidBefore;
+    int limit;
+    int fetchSize;
+    boolean values = true;
+    boolean latestRenders;
+    boolean traced;
+
+    public Slice(String key) {
+        this.key = checkNotNull(key);
+    }
+
+    public Slice rev(int rev) {
+        checkState(this.revBefore == null, "rev and revBefore are exclusive");
+        this.rev = rev;
+        return this;
+    }
+
+    public Slice revBefore(int rev) {
+        checkState(this.rev == null, "rev and revBefore are exclusive");
+        this.revBefore = rev;
+        return this;
+    }
+
+    public Slice tid(UUID tid) {
+        checkState(this.rev != null && this.tidBefore == null, "tid requires rev, and excludes tidBefore");
+        this.tid = checkNotNull(tid);
+        return this;
+    }
+
+    public Slice tidBefore(UUID tid) {
+        checkState(this.rev != null && this.tid == null, "tidBefore requires rev, and excludes tid");
+        this.tidBefore = checkNotNull(tid);
+        return this;
+    }
+
+    /** Reads at most {@code limit} cells, across all pages (0 is unlimited). */
+    public Slice limit(int limit) {
+        checkArgument(limit >= 0, "Limit must not be negative");
+        this.limit = limit;
+        return this;
+    }
+
+    /** Reads {@code fetchSize} cells per page (0 is the storage's default). */
+    public Slice fetchSize(int fetchSize) {
+        checkArgument(fetchSize >= 0, "Fetch size must not be negative");
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /** Reads only the keys and TTLs of cells. */
+    public Slice withoutValues() {
+        this.values = false;
+        return this;
+    }
+
+    /**
+     * Reads only the latest live render of each revision, so that {@code limit} counts revisions (a listing). Cassandra
+     * needs 3.10 or later for this ({@code GROUP BY key, rev}).
+     */
+    public Slice latestRenders() {
+        this.latestRenders = true;
+        return this;
+    }
+
+    /** Records the live and tombstone cells read (see {@link Storage.Page#trace()}). */
+    public Slice traced() {
+        this.traced = true;
+        return this;
+    }
+
+}
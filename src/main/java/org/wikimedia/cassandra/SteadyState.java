@@ -0,0 +1,96 @@
+package org.wikimedia.cassandra;
+
+import java.util.Arrays;
+
+/**
+ * Judges whether a run's throughput settled, from a series of samples (one per reporting period). A window of
+ * {@link #WINDOW} consecutive samples is steady when their coefficient of variation, and the change across them of
+ * their least-squares trend (relative to their mean), are both within {@link #TOLERANCE}. A run settled if its last
+ * window is steady, from the start of the earliest steady window after which every window was.
+ */
+class SteadyState {
+    static final int WINDOW = 10;
+    static final double TOLERANCE = 0.1;
+
+    private double[] samples = new double[64];
+    private int size;
+
+    synchronized void add(double sample) {
+        if (this.size == this.samples.length) {
+            this.samples = Arrays.copyOf(this.samples, this.size * 2);
+        }
+        this.samples[this.size++] = sample;
+    }
+
+    synchronized void clear() {
+        this.size = 0;
+    }
+
+    /** Returns the index of the sample from which throughput was steady, or -1 if it never settled (or too few). */
+    synchronized int settledAt() {
+        int settled = -1;
+        for (int start = this.size - WINDOW; start >= 0 && steady(start); start--) {
+            settled = start;
+        }
+        return settled;
+    }
+
+    /** Describes the outcome, for a run reported every {@code periodSeconds}. */
+    synchronized String describe(double periodSeconds) {
+        if (this.size < WINDOW) {
+            return String.format("Too short (%d samples) to judge whether throughput was steady", this.size);
+        }
+        int start = this.size - WINDOW;
+        int settled = settledAt();
+        if (settled < 0) {
+            return String.format(
+                    "Throughput never stabilized: the last %d samples varied by %.1f%%, trending %+.1f%%",
+                    WINDOW,
+                    variation(start) * 100,
+                    trend(start) * 100);
+        }
+        return String.format(
+                "Throughput was steady from %.0fs, at %.1f ops/s (varying by %.1f%%)",
+                settled * periodSeconds,
+                mean(settled, this.size - settled),
+                variation(start) * 100);
+    }
+
+    private boolean steady(int start) {
+        return mean(start, WINDOW) > 0
+                && variation(start) <= TOLERANCE
+                && Math.abs(trend(start)) <= TOLERANCE;
+    }
+
+    private double mean(int start, int length) {
+        double sum = 0;
+        for (int i = start; i < start + length; i++) {
+            sum += this.samples[i];
+        }
+        return sum / length;
+    }
+
+    /** Coefficient of variation of the window from {@code start}. */
+    private double variation(int start) {
+        double mean = mean(start, WINDOW);
+        double squares = 0;
+        for (int i = start; i < start + WINDOW; i++) {
+            squares += (this.samples[i] - mean) * (this.samples[i] - mean);
+        }
+        return mean > 0 ? Math.sqrt(squares / WINDOW) / mean : 0;
+    }
+
+    /** Change over the window from {@code start} of its least-squares line, relative to its mean. */
+    private double trend(int start) {
+        double mean = mean(start, WINDOW);
+        double middle = (WINDOW - 1) / 2.0;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            covariance += (i - middle) * (this.samples[start + i] - mean);
+            variance += (i - middle) * (i - middle);
+        }
+        return mean > 0 ? covariance / variance * (WINDOW - 1) / mean : 0;
+    }
+
+}
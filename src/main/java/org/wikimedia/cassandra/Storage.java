@@ -0,0 +1,86 @@
+package org.wikimedia.cassandra;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The key-rev-value table of {@code schema.cql}: partitioned by {@code key}, clustered by {@code rev DESC, tid DESC},
+ * with per-cell TTLs. Implemented by {@link CassandraSession} (and {@link ChunkedStorage}, with values in chunks), and
+ * in-process by {@link MemoryStorage}.
+ */
+public interface Storage extends AutoCloseable {
+
+    /** Writes (or overwrites) a cell. */
+    ListenableFuture<Void> write(Cell cell);
+
+    /** Writes cells of the same partition together (as an UNLOGGED batch). */
+    ListenableFuture<Void> write(List<Cell> cells);
+
+    /** Reads the first page of a slice. */
+    ListenableFuture<Page> read(Slice slice);
+
+    /** Deletes a slice, with a single (range, row or partition) tombstone; limits and paging are ignored. */
+    ListenableFuture<Void> delete(Slice slice);
+
+    /** A page of a slice, in clustering order. */
+    interface Page {
+        List<Cell> cells();
+
+        /** Returns true if there are no more pages. */
+        boolean isLast();
+
+        /** Reads the next page; only valid if this is not the last. */
+        ListenableFuture<Page> next();
+
+        /**
+         * Returns the cells read for this page, if the slice was traced, or null. This may block (on a request for
+         * the trace), so should not be called from a completion callback.
+         */
+        Trace trace();
+
+        /**
+         * Returns the number of cells read for this page, but left out of it because their values were incomplete (for
+         * example, chunks that expired, or were deleted, before the values were read).
+         */
+        default int dropped() {
+            return 0;
+        }
+
+        /**
+         * Returns the memory of the page's values to the storage, which may reuse it; the values must not be used
+         * afterwards. Pages that are never released are garbage collected.
+         */
+        default void release() {
+        }
+    }
+
+    /** Releases the page a read completes with (see {@link Page#release()}); returns {@code page}. */
+    static ListenableFuture<Page> released(ListenableFuture<Page> page) {
+        Futures.addCallback(page, new FutureCallback<Page>() {
+            @Override
+            public void onSuccess(Page result) {
+                result.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        return page;
+    }
+
+    /** The live and tombstone cells that were read to produce a page. */
+    class Trace {
+        final long live;
+        final long tombstones;
+
+        Trace(long live, long tombstones) {
+            this.live = live;
+            this.tombstones = tombstones;
+        }
+    }
+
+}
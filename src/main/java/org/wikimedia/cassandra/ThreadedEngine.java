@@ -0,0 +1,106 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * An {@link Engine} where each of a fixed number of worker threads blocks on one request at a time. When the queue is
+ * full, the submitting thread executes the request itself.
+ */
+public class ThreadedEngine implements Engine {
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadedEngine.class);
+
+    private final int concurrency;
+    private final ExecutorService executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public ThreadedEngine(MetricRegistry metrics, String name, int concurrency) {
+        this.concurrency = concurrency;
+
+        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(concurrency * 2);
+
+        metrics.register(name(name, "enqueued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return queue.size();
+            }
+        });
+        metrics.register(name(name, "inflight"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return inFlight();
+            }
+        });
+
+        this.executor = new ThreadPoolExecutor(
+                concurrency,
+                concurrency,
+                30,
+                TimeUnit.SECONDS,
+                queue,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public <T> void submit(Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+        this.inFlight.incrementAndGet();
+        this.executor.execute(() -> {
+            try {
+                T result;
+                try {
+                    result = Uninterruptibles.getUninterruptibly(operation.get());
+                }
+                catch (ExecutionException e) {
+                    callback.onFailure(e.getCause());
+                    return;
+                }
+                catch (RuntimeException e) {
+                    callback.onFailure(e);
+                    return;
+                }
+                callback.onSuccess(result);
+            }
+            finally {
+                this.inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public int inFlight() {
+        return this.inFlight.get();
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdown();
+
+        try {
+            // Block until any jobs on the queue have completed, or the timeout has expired.
+            if (!this.executor.awaitTermination(Engine.shutdownTimeout(this.concurrency), TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for executor shutdown!");
+            }
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for executor shutdown", e);
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An asynchronous {@link Engine} that groups requests by the host owning their partition, and caps the number in
+ * flight to each host as well as overall. Only requests in flight count against the overall limit, which is all the
+ * caller blocks on: requests for a saturated host wait in that host's queue, without holding up requests for other
+ * hosts, so a single slow node cannot absorb all of the concurrency. Each queue holds at most as many requests as the
+ * host may have in flight; once a host's queue is full, the caller blocks until it has room.
+ * <p>
+ * Throughput, failures, latency (from submission, including time queued), and the in-flight and queued requests of
+ * each host are registered as {@code <name>.hosts.<host>.*}.
+ */
+public class TokenAwareEngine implements Engine {
+    private static final Logger LOG = LoggerFactory.getLogger(TokenAwareEngine.class);
+
+    private final MetricRegistry metrics;
+    private final String name;
+    private final TokenRing ring;
+    private final int concurrency;
+    private final int hostConcurrency;
+    private final Semaphore permits;
+    private final ConcurrentMap<String, HostQueue> hosts = new ConcurrentHashMap<>();
+
+    public TokenAwareEngine(MetricRegistry metrics, String name, int concurrency, TokenRing ring, int hostConcurrency) {
+        this.metrics = metrics;
+        this.name = name;
+        this.ring = ring;
+        this.concurrency = concurrency;
+        this.hostConcurrency = hostConcurrency;
+        this.permits = new Semaphore(concurrency);
+
+        metrics.register(name(name, "inflight"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return inFlight();
+            }
+        });
+    }
+
+    @Override
+    public <T> void submit(Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+        submit(null, operation, callback);
+    }
+
+    @Override
+    public <T> void submit(String key, Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+        HostQueue host = host(key != null ? this.ring.owner(key) : TokenRing.UNKNOWN);
+        Request<T> request = new Request<>(host, operation, callback);
+        if (host.admit(request)) {
+            this.permits.acquireUninterruptibly();
+            request.dispatch();
+        }
+    }
+
+    private HostQueue host(String owner) {
+        HostQueue host = this.hosts.get(owner);
+        if (host == null) {
+            synchronized (this.hosts) {
+                host = this.hosts.get(owner);
+                if (host == null) {
+                    host = new HostQueue(name(this.name, "hosts", owner.replace('.', '_')));
+                    this.hosts.put(owner, host);
+                }
+            }
+        }
+        return host;
+    }
+
+    /** Returns the number of requests in flight, or queued. */
+    @Override
+    public int inFlight() {
+        int queued = 0;
+        for (HostQueue host : this.hosts.values()) {
+            queued += host.queued();
+        }
+        return this.concurrency - this.permits.availablePermits() + queued;
+    }
+
+    @Override
+    public void close() {
+        try {
+            // Block until all permits have been returned, or the timeout has expired; requests still queued take over
+            // the permits of those completing, so none are left once all are returned.
+            long timeout = Engine.shutdownTimeout(this.concurrency);
+            if (!this.permits.tryAcquire(this.concurrency, timeout, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for {} in-flight requests!", inFlight());
+                return;
+            }
+            // Nothing is in flight any longer
+            this.permits.release(this.concurrency);
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for in-flight requests", e);
+        }
+    }
+
+    private class HostQueue {
+        private final Queue<Request<?>> pending = new ArrayDeque<>();
+        private final Meter completed;
+        private final Meter failed;
+        private final Latency latency;
+        private int inFlight = 0;
+
+        HostQueue(String prefix) {
+            this.completed = metrics.meter(name(prefix, "completed"));
+            this.failed = metrics.meter(name(prefix, "failed"));
+            this.latency = Latency.register(metrics, name(prefix, "latency"));
+            metrics.register(name(prefix, "inflight"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    synchronized (HostQueue.this) {
+                        return inFlight;
+                    }
+                }
+            });
+            metrics.register(name(prefix, "queued"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    synchronized (HostQueue.this) {
+                        return pending.size();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Returns true if the request may be dispatched immediately (given a permit), or false if it was queued,
+         * waiting for room in the queue if it is full.
+         */
+        synchronized boolean admit(Request<?> request) {
+            boolean interrupted = false;
+            try {
+                while (this.inFlight >= hostConcurrency && this.pending.size() >= hostConcurrency) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (this.inFlight < hostConcurrency) {
+                this.inFlight++;
+                return true;
+            }
+            this.pending.add(request);
+            return false;
+        }
+
+        synchronized int queued() {
+            return this.pending.size();
+        }
+
+        /** Returns the next queued request, which takes over the completed request's slot and permit, or null. */
+        synchronized Request<?> complete() {
+            Request<?> next = this.pending.poll();
+            if (next == null) {
+                this.inFlight--;
+            }
+            // Either leaves room for a caller waiting to be admitted
+            notify();
+            return next;
+        }
+    }
+
+    private class Request<T> implements FutureCallback<T> {
+        private final HostQueue host;
+        private final Supplier<ListenableFuture<T>> operation;
+        private final FutureCallback<? super T> callback;
+        private final long start = System.nanoTime();
+
+        Request(HostQueue host, Supplier<ListenableFuture<T>> operation, FutureCallback<? super T> callback) {
+            this.host = host;
+            this.operation = operation;
+            this.callback = callback;
+        }
+
+        void dispatch() {
+            ListenableFuture<T> future;
+            try {
+                future = this.operation.get();
+            }
+            catch (RuntimeException e) {
+                onFailure(e);
+                return;
+            }
+            Futures.addCallback(future, this);
+        }
+
+        @Override
+        public void onSuccess(T result) {
+            this.host.latency.record(this.start);
+            this.host.completed.mark();
+            try {
+                this.callback.onSuccess(result);
+            }
+            finally {
+                completed();
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            this.host.failed.mark();
+            try {
+                this.callback.onFailure(t);
+            }
+            finally {
+                completed();
+            }
+        }
+
+        private void completed() {
+            Request<?> next = this.host.complete();
+            if (next != null) {
+                next.dispatch();
+            }
+            else {
+                permits.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.wikimedia.cassandra.CassandraSession.KEYSPACE;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Maps partition keys to the host that owns them (the first replica). Implementations are thread-safe.
+ */
+public abstract class TokenRing {
+    static final String UNKNOWN = "unknown";
+
+    /** Returns an identifier for the host that owns the partition {@code key}. */
+    public abstract String owner(String key);
+
+    /** Returns the partition key's serialized form (a single text column). */
+    static ByteBuffer routingKey(String key) {
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Returns the ring of a live cluster, as known to the driver. */
+    public static TokenRing of(Metadata metadata) {
+        return new TokenRing() {
+            @Override
+            public String owner(String key) {
+                Iterator<Host> replicas = metadata.getReplicas(Metadata.quote(KEYSPACE), routingKey(key)).iterator();
+                return replicas.hasNext() ? replicas.next().getAddress().getHostAddress() : UNKNOWN;
+            }
+        };
+    }
+
+    /**
+     * Returns a ring of {@code nodes} hosts (named {@code node1}, {@code node2}, ...), each with {@code vnodes} tokens
+     * drawn at random, as with Murmur3Partitioner and num_tokens; no cluster is required.
+     */
+    public static TokenRing simulated(int nodes, int vnodes, long seed) {
+        return new Simulated(nodes, vnodes, seed);
+    }
+
+    static class Simulated extends TokenRing {
+        // Identical to Cassandra's Murmur3 for keys without bytes >= 0x80 (which the simulator never generates)
+        private static final HashFunction MURMUR3 = Hashing.murmur3_128();
+
+        private final long[] tokens;
+        private final String[] owners;
+
+        Simulated(int nodes, int vnodes, long seed) {
+            checkArgument(nodes > 0 && vnodes > 0, "Nodes and vnodes must be greater than zero");
+            Random random = new Random(seed);
+            long[][] ring = new long[nodes * vnodes][];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = new long[] { random.nextLong(), i % nodes };
+            }
+            Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+
+            this.tokens = new long[ring.length];
+            this.owners = new String[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                this.tokens[i] = ring[i][0];
+                this.owners[i] = "node" + (ring[i][1] + 1);
+            }
+        }
+
+        @Override
+        public String owner(String key) {
+            // A range (previous, token] is owned by token's node
+            int i = Arrays.binarySearch(this.tokens, token(key));
+            if (i < 0) {
+                i = -(i + 1);
+            }
+            return this.owners[i < this.tokens.length ? i : 0];
+        }
+
+        static long token(String key) {
+            long token = MURMUR3.hashBytes(key.getBytes(StandardCharsets.UTF_8)).asLong();
+            return token == Long.MIN_VALUE ? Long.MAX_VALUE : token;
+        }
+    }
+
+}
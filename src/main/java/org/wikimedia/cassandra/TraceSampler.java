@@ -0,0 +1,74 @@
+package org.wikimedia.cassandra;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.FutureCallback;
+
+/**
+ * Samples reads to trace, and records the live and tombstone cells that the storage reports having read. Traces are
+ * fetched on a background thread; when it falls behind, traces are dropped (and counted) rather than slowing the
+ * workload down.
+ */
+class TraceSampler implements FutureCallback<Storage.Page> {
+    private static final Logger LOG = LoggerFactory.getLogger(TraceSampler.class);
+
+    private final double probability;
+    private final Histogram live;
+    private final Histogram tombstones;
+    private final Meter dropped;
+    private final ExecutorService executor;
+
+    TraceSampler(double probability, Histogram live, Histogram tombstones, Meter dropped) {
+        this.probability = probability;
+        this.live = live;
+        this.tombstones = tombstones;
+        this.dropped = dropped;
+        this.executor = new ThreadPoolExecutor(
+                1,
+                1,
+                30,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1000),
+                r -> {
+                    Thread thread = new Thread(r, "trace-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (r, executor) -> this.dropped.mark());
+    }
+
+    /** Returns true if the next read should be traced. */
+    boolean sample() {
+        return this.probability > 0 && ThreadLocalRandom.current().nextDouble() < this.probability;
+    }
+
+    @Override
+    public void onSuccess(Storage.Page page) {
+        this.executor.execute(() -> {
+            try {
+                Storage.Trace trace = page.trace();
+                this.live.update(trace.live);
+                this.tombstones.update(trace.tombstones);
+            }
+            catch (RuntimeException e) {
+                LOG.debug("Unable to fetch query trace", e);
+                this.dropped.mark();
+            }
+        });
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+        // Counted as a failed request elsewhere
+    }
+
+}
@@ -0,0 +1,25 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The TTLs given to the renders of a revision as they are written: every render but the last of a revision is
+ * superseded by the next, and expires after {@code superseded} seconds; the last expires after {@code latest} seconds
+ * (0 never expires).
+ */
+public class TtlPolicy {
+    private final int superseded;
+    private final int latest;
+
+    public TtlPolicy(int superseded, int latest) {
+        checkArgument(superseded >= 0 && latest >= 0, "TTLs must not be negative");
+        this.superseded = superseded;
+        this.latest = latest;
+    }
+
+    /** Returns the TTL for render {@code render} (from 0) of {@code numRenders}. */
+    public int ttl(int render, int numRenders) {
+        return render < (numRenders - 1) ? this.superseded : this.latest;
+    }
+
+}
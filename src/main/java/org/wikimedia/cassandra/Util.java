@@ -1,14 +1,25 @@
 package org.wikimedia.cassandra;
 
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Util {
-    public static byte[] randomBytes(int size) throws IOException {
+    /** Returns random (non-cryptographic) bytes; Unlike /dev/random, this never blocks on entropy. */
+    public static byte[] randomBytes(int size) {
         byte[] output = new byte[size];
-        try (FileInputStream fis = new FileInputStream("/dev/random")) {
-            fis.read(output, 0, size);
-        }
+        ThreadLocalRandom.current().nextBytes(output);
         return output;
     }
+
+    static ByteBuffer bytes(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buff = new byte[1024];
+        int length;
+        while ((length = input.read(buff)) != -1)
+            output.write(buff, 0, length);
+        return ByteBuffer.wrap(output.toByteArray());
+    }
 }
@@ -0,0 +1,179 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Supplies values for writes. Values are read-only slices of a pool of direct memory that is generated up-front, so
+ * drawing one neither copies nor allocates.
+ * <p>
+ * Sizes are specified as one of the profiles {@code small}, {@code medium}, or {@code large} (log-normal, with
+ * medians of 4k, 64k, and 1m respectively), or as one of:
+ * <ul>
+ * <li>{@code fixed:SIZE}</li>
+ * <li>{@code uniform:MIN..MAX}</li>
+ * <li>{@code lognormal:MEDIAN[:SIGMA]} (default sigma: 0.5)</li>
+ * </ul>
+ * where sizes are in bytes, and may be suffixed with one of {@code k} or {@code m}. The special profile {@code sample}
+ * always returns the bundled HTML document.
+ * <p>
+ * Compressibility is the approximate ratio of compressed to uncompressed size; each block of the pool is part random,
+ * and part a repeated pattern, in that proportion.
+ */
+public class ValueGenerator {
+    /** Number of distinct values (slices) to draw from. */
+    static final int NUM_VALUES = 1024;
+    /** Minimum size of the generated pool. */
+    static final int MIN_POOL_SIZE = 32 * 1024 * 1024;
+    /** Values are clamped to this size. */
+    static final int MAX_VALUE_SIZE = 64 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 4096;
+    private static final byte[] PATTERN = "<p data-parsoid='{}'>Lorem ipsum dolor sit amet</p>\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final Pattern SIZE = Pattern.compile("(\\d+)([km]?)");
+
+    private final ByteBuffer[] values;
+
+    ValueGenerator(ByteBuffer[] values) {
+        checkArgument(values.length > 0, "At least one value is required");
+        this.values = values;
+    }
+
+    /** Returns a value; callers may read, but must not modify, the contents. Thread-safe. */
+    public ByteBuffer next() {
+        return this.values.length == 1 ? this.values[0]
+                : this.values[ThreadLocalRandom.current().nextInt(this.values.length)];
+    }
+
+    /** Returns a value of {@code size} bytes, from the start of one at least as large. Thread-safe. */
+    public ByteBuffer next(int size) {
+        ByteBuffer value = next().duplicate();
+        checkArgument(value.remaining() >= size, "Value size %s exceeds %s", size, value.remaining());
+        value.limit(value.position() + size);
+        return value;
+    }
+
+    public static ValueGenerator create(String spec, double compressibility, long seed) throws IOException {
+        if (spec.equals("sample")) {
+            return sample();
+        }
+
+        checkArgument(compressibility > 0 && compressibility <= 1, "Compressibility must be in (0, 1]");
+        Random random = new Random(seed);
+        int[] sizes = sizes(spec, random);
+
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+
+        ByteBuffer pool = pool(Math.max(MIN_POOL_SIZE, max * 2), compressibility, random);
+        ByteBuffer[] values = new ByteBuffer[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            int offset = random.nextInt(pool.capacity() - sizes[i] + 1);
+            ByteBuffer value = pool.duplicate();
+            value.position(offset).limit(offset + sizes[i]);
+            values[i] = value.slice().asReadOnlyBuffer();
+        }
+        return new ValueGenerator(values);
+    }
+
+    /** Returns a generator of the bundled HTML document. */
+    public static ValueGenerator sample() throws IOException {
+        try (InputStream input = ValueGenerator.class.getResourceAsStream("/foobar.html")) {
+            ByteBuffer heap = Util.bytes(input);
+            ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+            direct.put(heap).flip();
+            return new ValueGenerator(new ByteBuffer[] { direct.asReadOnlyBuffer() });
+        }
+    }
+
+    static int[] sizes(String spec, Random random) {
+        switch (spec) {
+            case "small":
+                return sizes("lognormal:4k", random);
+            case "medium":
+                return sizes("lognormal:64k", random);
+            case "large":
+                return sizes("lognormal:1m", random);
+            default:
+                break;
+        }
+
+        String[] args = spec.split(":");
+        int[] sizes = new int[NUM_VALUES];
+        switch (args[0]) {
+            case "fixed":
+                checkArgument(args.length == 2, "Invalid value size: %s", spec);
+                // Distinct values, all the same size; a single one would compress (and deduplicate) far too well
+                Arrays.fill(sizes, size(args[1]));
+                return sizes;
+            case "uniform": {
+                checkArgument(args.length == 2 && args[1].contains(".."), "Invalid value size: %s", spec);
+                int min = size(args[1].substring(0, args[1].indexOf("..")));
+                int max = size(args[1].substring(args[1].indexOf("..") + 2));
+                checkArgument(min <= max, "Invalid value size range: %s", spec);
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = min + random.nextInt(max - min + 1);
+                }
+                return sizes;
+            }
+            case "lognormal": {
+                checkArgument(args.length == 2 || args.length == 3, "Invalid value size: %s", spec);
+                double mu = Math.log(size(args[1]));
+                double sigma = args.length == 3 ? Double.parseDouble(args[2]) : 0.5d;
+                for (int i = 0; i < sizes.length; i++) {
+                    double size = Math.exp(mu + sigma * random.nextGaussian());
+                    sizes[i] = (int) Math.max(1, Math.min(MAX_VALUE_SIZE, size));
+                }
+                return sizes;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown value size: " + spec);
+        }
+    }
+
+    static int size(String spec) {
+        Matcher matcher = SIZE.matcher(spec.trim().toLowerCase());
+        checkArgument(matcher.matches(), "Invalid size: %s", spec);
+        long size = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "k":
+                size *= 1024;
+                break;
+            case "m":
+                size *= 1024 * 1024;
+                break;
+            default:
+                break;
+        }
+        checkArgument(size > 0 && size <= MAX_VALUE_SIZE, "Size out of range: %s", spec);
+        return (int) size;
+    }
+
+    private static ByteBuffer pool(int size, double compressibility, Random random) {
+        ByteBuffer pool = ByteBuffer.allocateDirect(size);
+        byte[] block = new byte[BLOCK_SIZE];
+        int randomBytes = (int) (BLOCK_SIZE * compressibility);
+
+        while (pool.hasRemaining()) {
+            random.nextBytes(block);
+            for (int i = randomBytes; i < BLOCK_SIZE; i++) {
+                block[i] = PATTERN[(i - randomBytes) % PATTERN.length];
+            }
+            pool.put(block, 0, Math.min(BLOCK_SIZE, pool.remaining()));
+        }
+        pool.flip();
+        return pool;
+    }
+
+}
@@ -0,0 +1,383 @@
+package org.wikimedia.cassandra;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * {@link Storage} that checks what is read back against what was written. Values are written with a header of the
+ * cell's key (its hash), rev and tid, its TTL, a generation, and a CRC32C of the header and value; the generation is
+ * the time of the write, in microseconds, and increases with each write in the process. Cells written without a tid
+ * are given one here, rather than by the storage, so that it is in the header. Values read are checked against their
+ * header, and returned without it: slices of the values read, checksummed in place (see {@link Crc32c}).
+ * <p>
+ * The newest render written (once acknowledged) of each of the last {@link #TRACKED_REVISIONS} or so revisions is
+ * remembered, and reads that start at the newest render of one of those revisions, but return an older one, are
+ * stale if they were issued after it was acknowledged (reads issued earlier may legitimately miss it). Only revisions
+ * written by this process (as by {@code mixed} and {@code rerender}) are checked, and a render acknowledged while a
+ * read is in flight hides the older ones it replaced from that read's check.
+ * <p>
+ * Registered as {@code VerifyingStorage.sealed} (values written with a header), {@code .verified} (values read that
+ * matched theirs), {@code .mismatched} (values whose checksum, key, rev or tid did not match), {@code .stale} (older
+ * renders read in place of the newest), {@code .expired} (values read more than {@link #EXPIRY_GRACE_SECONDS} after
+ * their TTL ran out), {@code .unverified} (values read without a header, from a run without verification), and
+ * {@code .missing} (reads of a partition, or of a revision, that found nothing, and cells whose values were found
+ * incomplete; expected of data that was never written, or was deleted, or expired). The time spent sealing and
+ * checking values is marked, in nanoseconds, on {@code VerifyingStorage.overhead}; its rate, divided by 10^9, is the
+ * number of cores kept busy by verification.
+ */
+public class VerifyingStorage implements Storage {
+    private static final Logger LOG = LoggerFactory.getLogger(VerifyingStorage.class);
+    /** "KRVV", followed by the checksum, the key's hash, rev, TTL, generation and tid. */
+    static final int MAGIC = 0x4b525656;
+    static final int HEADER_SIZE = 44;
+    /** The fields of the header covered by the checksum (after the value). */
+    private static final int CHECKED_OFFSET = 8;
+    /** Allowance for the difference between the client's clock and the cluster's, and the latency of writes. */
+    static final int EXPIRY_GRACE_SECONDS = 5;
+    /** Revisions whose newest render is remembered; older entries are replaced by newer ones in the same slot. */
+    static final int TRACKED_REVISIONS = 1 << 18;
+    /** Problems logged, before they are only counted. */
+    private static final long LOGGED_PROBLEMS = 10;
+
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private final Storage storage;
+    private final AtomicReferenceArray<Render> newest = new AtomicReferenceArray<>(TRACKED_REVISIONS);
+    private final AtomicLong logged = new AtomicLong();
+    private final Meter sealed;
+    private final Meter verified;
+    private final Meter mismatched;
+    private final Meter stale;
+    private final Meter expired;
+    private final Meter unverified;
+    private final Meter missing;
+    private final Meter overhead;
+
+    public VerifyingStorage(MetricRegistry metrics, Storage storage) {
+        this.storage = checkNotNull(storage);
+        this.sealed = metrics.meter(name(VerifyingStorage.class, "sealed"));
+        this.verified = metrics.meter(name(VerifyingStorage.class, "verified"));
+        this.mismatched = metrics.meter(name(VerifyingStorage.class, "mismatched"));
+        this.stale = metrics.meter(name(VerifyingStorage.class, "stale"));
+        this.expired = metrics.meter(name(VerifyingStorage.class, "expired"));
+        this.unverified = metrics.meter(name(VerifyingStorage.class, "unverified"));
+        this.missing = metrics.meter(name(VerifyingStorage.class, "missing"));
+        this.overhead = metrics.meter(name(VerifyingStorage.class, "overhead"));
+    }
+
+    /** Returns the storage being verified. */
+    Storage storage() {
+        return this.storage;
+    }
+
+    /** Returns the next generation: the time in microseconds, or one more than the last, if that's later. */
+    static long nextGeneration() {
+        return GENERATION.accumulateAndGet(nowMicros(), (last, time) -> Math.max(last + 1, time));
+    }
+
+    /** Returns a copy of {@code value} (which is unchanged) with a header. */
+    static ByteBuffer seal(String key, int rev, UUID tid, int ttl, long generation, ByteBuffer value) {
+        ByteBuffer sealed = ByteBuffer.allocate(HEADER_SIZE + value.remaining());
+        sealed.putInt(MAGIC).putInt(0).putInt(key.hashCode()).putInt(rev).putInt(ttl).putLong(generation);
+        sealed.putLong(tid.getMostSignificantBits()).putLong(tid.getLeastSignificantBits());
+        sealed.put(value.duplicate()).flip();
+        sealed.putInt(4, checksum(sealed));
+        return sealed;
+    }
+
+    /** The checksum of the value of {@code sealed}, and then the checked fields of its header. */
+    private static int checksum(ByteBuffer sealed) {
+        ByteBuffer value = sealed.duplicate();
+        value.position(value.position() + HEADER_SIZE);
+        ByteBuffer header = sealed.duplicate();
+        header.position(header.position() + CHECKED_OFFSET).limit(header.position() + HEADER_SIZE - CHECKED_OFFSET);
+        return Crc32c.get().update(value).update(header).value();
+    }
+
+    @Override
+    public ListenableFuture<Void> write(Cell cell) {
+        long start = System.nanoTime();
+        Cell sealed = seal(cell);
+        this.sealed.mark();
+        this.overhead.mark(System.nanoTime() - start);
+        return written(sealed, this.storage.write(sealed));
+    }
+
+    @Override
+    public ListenableFuture<Void> write(List<Cell> cells) {
+        long start = System.nanoTime();
+        List<Cell> sealed = new ArrayList<>(cells.size());
+        for (Cell cell : cells) {
+            sealed.add(seal(cell));
+        }
+        this.sealed.mark(cells.size());
+        this.overhead.mark(System.nanoTime() - start);
+        ListenableFuture<Void> write = this.storage.write(sealed);
+        for (Cell cell : sealed) {
+            written(cell, write);
+        }
+        return write;
+    }
+
+    private static Cell seal(Cell cell) {
+        Cell identified = cell.identified();
+        long generation = nextGeneration();
+        ByteBuffer value = seal(cell.key(), cell.rev(), identified.tid(), cell.ttl(), generation, cell.value());
+        return new Cell(cell.key(), cell.rev(), identified.tid(), value, cell.ttl());
+    }
+
+    /** Remembers the cell as the newest render of its revision, if it is, once written. */
+    private ListenableFuture<Void> written(Cell cell, ListenableFuture<Void> write) {
+        long expires = cell.ttl() > 0 ? nowMicros() + TimeUnit.SECONDS.toMicros(cell.ttl()) : 0;
+        Futures.addCallback(write, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                Render render = new Render(cell.key(), cell.rev(), cell.tid().timestamp(), expires, System.nanoTime());
+                int slot = render.slot();
+                while (true) {
+                    Render current = VerifyingStorage.this.newest.get(slot);
+                    if (current != null && current.fingerprint == render.fingerprint && current.time >= render.time) {
+                        return;
+                    }
+                    if (VerifyingStorage.this.newest.compareAndSet(slot, current, render)) {
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        return write;
+    }
+
+    @Override
+    public ListenableFuture<Storage.Page> read(Slice slice) {
+        boolean whole = slice.tid == null && slice.tidBefore == null && slice.revBefore == null;
+        boolean newest = slice.tid == null && slice.tidBefore == null;
+        long issued = System.nanoTime();
+        return Futures.transform(
+                this.storage.read(slice),
+                (AsyncFunction<Storage.Page, Storage.Page>) page -> {
+                    if (whole && page.cells().isEmpty() && page.dropped() == 0) {
+                        this.missing.mark();
+                    }
+                    return Futures.immediateFuture(new Page(page, newest, issued, null));
+                });
+    }
+
+    @Override
+    public ListenableFuture<Void> delete(Slice slice) {
+        if (slice.rev != null) {
+            // Renders of the revision are gone, so older ones may be the newest
+            Render render = new Render(slice.key, slice.rev, 0, 0, 0);
+            Render current = this.newest.get(render.slot());
+            if (current != null && current.fingerprint == render.fingerprint) {
+                this.newest.compareAndSet(render.slot(), current, null);
+            }
+        }
+        return this.storage.delete(slice);
+    }
+
+    @Override
+    public void close() throws Exception {
+        this.storage.close();
+    }
+
+    /** Checks the value of {@code cell} (if it was read) against its header, returning it without the header. */
+    private Cell verify(Cell cell, long nowMicros) {
+        ByteBuffer value = cell.value();
+        if (value == null) {
+            return cell;
+        }
+        int start = value.position();
+        if (value.remaining() < HEADER_SIZE || value.getInt(start) != MAGIC) {
+            this.unverified.mark();
+            return cell;
+        }
+
+        int ttl = value.getInt(start + 16);
+        long generation = value.getLong(start + 20);
+        UUID tid = new UUID(value.getLong(start + 28), value.getLong(start + 36));
+        if (value.getInt(start + 4) != checksum(value)) {
+            problem(this.mismatched, cell, String.format("checksum (generation %d)", generation));
+        }
+        else if (value.getInt(start + 8) != cell.key().hashCode()
+                || value.getInt(start + 12) != cell.rev()
+                || !tid.equals(cell.tid())) {
+            problem(this.mismatched, cell, String.format(
+                    "written as rev %d, tid %s of key hash %d (generation %d)",
+                    value.getInt(start + 12),
+                    tid,
+                    value.getInt(start + 8),
+                    generation));
+        }
+        else if (ttl > 0 && nowMicros > generation + TimeUnit.SECONDS.toMicros(ttl + EXPIRY_GRACE_SECONDS)) {
+            this.expired.mark();
+        }
+        else {
+            this.verified.mark();
+        }
+
+        ByteBuffer unsealed = value.duplicate();
+        unsealed.position(start + HEADER_SIZE);
+        return new Cell(cell.key(), cell.rev(), cell.tid(), unsealed.slice(), cell.ttl());
+    }
+
+    /**
+     * Checks that {@code cell}, the first read of its revision, is the newest render written of it (if known) by the
+     * time the read was issued.
+     */
+    private void checkNewest(Cell cell, long nowMicros, long issuedNanos) {
+        Render render = new Render(cell.key(), cell.rev(), cell.tid().timestamp(), 0, 0);
+        Render newest = this.newest.get(render.slot());
+        if (newest == null || newest.fingerprint != render.fingerprint || newest.time <= render.time) {
+            return;
+        }
+        if (newest.acknowledgedNanos - issuedNanos >= 0) {
+            // Acknowledged after the read was issued, which may not have seen it
+            return;
+        }
+        // Unless the newest has (or may have) expired
+        long grace = TimeUnit.SECONDS.toMicros(EXPIRY_GRACE_SECONDS);
+        if (newest.expiresMicros == 0 || nowMicros < newest.expiresMicros - grace) {
+            problem(this.stale, cell, "a newer render was written at " + newest.time);
+        }
+    }
+
+    private void problem(Meter meter, Cell cell, String reason) {
+        meter.mark();
+        long count = this.logged.incrementAndGet();
+        if (count <= LOGGED_PROBLEMS) {
+            LOG.warn(
+                    "{} value at key {}, rev {}, tid {}: {}{}",
+                    meter == this.stale ? "Stale" : "Mismatched",
+                    cell.key(),
+                    cell.rev(),
+                    cell.tid(),
+                    reason,
+                    count == LOGGED_PROBLEMS ? "; further problems are only counted" : "");
+        }
+    }
+
+    private static long nowMicros() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    /**
+     * The newest render written of a revision: its tid's time (in 100ns units), when it expires (0 never), and when
+     * its write was acknowledged ({@link System#nanoTime()}).
+     */
+    private static class Render {
+        final long fingerprint;
+        final long time;
+        final long expiresMicros;
+        final long acknowledgedNanos;
+
+        Render(String key, int rev, long time, long expiresMicros, long acknowledgedNanos) {
+            this.fingerprint = mix(mix(key.hashCode() ^ ((long) key.length() << 32)) + rev);
+            this.time = time;
+            this.expiresMicros = expiresMicros;
+            this.acknowledgedNanos = acknowledgedNanos;
+        }
+
+        int slot() {
+            return (int) (this.fingerprint >>> 32) & (TRACKED_REVISIONS - 1);
+        }
+
+        /** The finalizer of SplitMix64. */
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /** A page whose values have been verified, and are returned without their headers. */
+    private class Page implements Storage.Page {
+        private final Storage.Page page;
+        private final boolean newest;
+        private final List<Cell> cells;
+
+        /**
+         * @param newest
+         *            whether the slice starts at the newest render of each revision it reads
+         * @param issuedNanos
+         *            when the request for the page was issued ({@link System#nanoTime()})
+         * @param previousRev
+         *            the rev of the last cell of the previous page, whose renders this page may continue, or null
+         */
+        Page(Storage.Page page, boolean newest, long issuedNanos, Integer previousRev) {
+            long start = System.nanoTime();
+            long now = nowMicros();
+            this.page = page;
+            this.newest = newest;
+            this.cells = new ArrayList<>(page.cells().size());
+            Integer rev = previousRev;
+            for (Cell cell : page.cells()) {
+                if (newest && (rev == null || rev != cell.rev())) {
+                    checkNewest(cell, now, issuedNanos);
+                }
+                rev = cell.rev();
+                this.cells.add(verify(cell, now));
+            }
+            VerifyingStorage.this.missing.mark(page.dropped());
+            VerifyingStorage.this.overhead.mark(System.nanoTime() - start);
+        }
+
+        @Override
+        public List<Cell> cells() {
+            return this.cells;
+        }
+
+        @Override
+        public boolean isLast() {
+            return this.page.isLast();
+        }
+
+        @Override
+        public ListenableFuture<Storage.Page> next() {
+            Integer last = this.cells.isEmpty() ? null : this.cells.get(this.cells.size() - 1).rev();
+            long issued = System.nanoTime();
+            return Futures.transform(
+                    this.page.next(),
+                    (AsyncFunction<Storage.Page, Storage.Page>) next -> Futures
+                            .immediateFuture(new Page(next, this.newest, issued, last)));
+        }
+
+        @Override
+        public Trace trace() {
+            return this.page.trace();
+        }
+
+        @Override
+        public int dropped() {
+            return this.page.dropped();
+        }
+
+        @Override
+        public void release() {
+            this.page.release();
+        }
+    }
+
+}
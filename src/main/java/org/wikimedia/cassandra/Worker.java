@@ -0,0 +1,164 @@
+package org.wikimedia.cassandra;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Runs one command on behalf of a {@link Coordinator}, streaming its metrics back rather than logging them. The
+ * protocol, over a single connection, is:
+ * <ol>
+ * <li>coordinator: the command's arguments (an int count, then each as UTF)</li>
+ * <li>worker: {@link #READY} (or {@link #FAILED}, if the arguments are invalid)</li>
+ * <li>coordinator: {@link #START}, once every worker is ready</li>
+ * <li>worker: a {@link #REPORT} each period while the command runs, and a last one after it has finished, then
+ * {@link #DONE} (or {@link #FAILED}, and a message)</li>
+ * </ol>
+ * A report is its period (a long, numbered from 1 at the start), whether it is the last (a boolean; the last covers
+ * only part of its period), the count of each meter (cumulative), and the interval histogram of each
+ * {@link Latency}, compressed.
+ */
+public class Worker {
+    static final byte START = 1;
+
+    static final byte READY = 1;
+    static final byte REPORT = 2;
+    static final byte DONE = 3;
+    static final byte FAILED = 4;
+
+    private static final Logger LOG = LoggerFactory.getLogger(Worker.class);
+
+    private final MetricRegistry metrics;
+    private final Function<String[], Runnable> commands;
+
+    /**
+     * @param metrics
+     *            the registry that commands register their metrics in
+     * @param commands
+     *            parses the arguments of a command
+     */
+    public Worker(MetricRegistry metrics, Function<String[], Runnable> commands) {
+        this.metrics = metrics;
+        this.commands = commands;
+    }
+
+    /** Accepts a connection from a coordinator, and runs the command it sends. */
+    public void serve(ServerSocket server, long period, TimeUnit unit) throws IOException {
+        try (Socket socket = server.accept()) {
+            LOG.info("Accepted coordinator {}", socket.getRemoteSocketAddress());
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            String[] args = new String[input.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = input.readUTF();
+            }
+            Runnable command;
+            try {
+                command = this.commands.apply(args);
+            }
+            catch (RuntimeException e) {
+                send(output, FAILED, String.valueOf(e.getMessage()));
+                return;
+            }
+            send(output, READY, null);
+            if (input.read() != START) {
+                LOG.warn("Coordinator disconnected before starting");
+                return;
+            }
+
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "worker-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            AtomicLong periods = new AtomicLong();
+            reporter.scheduleAtFixedRate(() -> report(output, periods.incrementAndGet(), false), period, period, unit);
+            try {
+                command.run();
+            }
+            catch (RuntimeException e) {
+                LOG.error("Command failed", e);
+                reporter.shutdownNow();
+                send(output, FAILED, String.valueOf(e.getMessage()));
+                return;
+            }
+            reporter.shutdown();
+            try {
+                reporter.awaitTermination(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            report(output, periods.incrementAndGet(), true);
+            send(output, DONE, null);
+        }
+    }
+
+    private void report(DataOutputStream output, long period, boolean last) {
+        try {
+            synchronized (output) {
+                output.writeByte(REPORT);
+                output.writeLong(period);
+                output.writeBoolean(last);
+                Map<String, Meter> meters = this.metrics.getMeters();
+                output.writeInt(meters.size());
+                for (Map.Entry<String, Meter> meter : meters.entrySet()) {
+                    output.writeUTF(meter.getKey());
+                    output.writeLong(meter.getValue().getCount());
+                }
+
+                Map<String, Metric> all = this.metrics.getMetrics();
+                int latencies = 0;
+                for (Metric metric : all.values()) {
+                    latencies += metric instanceof Latency ? 1 : 0;
+                }
+                output.writeInt(latencies);
+                for (Map.Entry<String, Metric> metric : all.entrySet()) {
+                    if (metric.getValue() instanceof Latency) {
+                        Histogram interval = ((Latency) metric.getValue()).interval();
+                        ByteBuffer encoded = ByteBuffer.allocate(interval.getNeededByteBufferCapacity());
+                        int length = interval.encodeIntoCompressedByteBuffer(encoded);
+                        output.writeUTF(metric.getKey());
+                        output.writeInt(length);
+                        output.write(encoded.array(), 0, length);
+                    }
+                }
+                output.flush();
+            }
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to report to coordinator: {}", e.getMessage());
+        }
+    }
+
+    private static void send(DataOutputStream output, byte message, String text) throws IOException {
+        synchronized (output) {
+            output.writeByte(message);
+            if (text != null) {
+                output.writeUTF(text);
+            }
+            output.flush();
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.wikimedia.cassandra;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed number of operations, issued to an {@link Engine} at the times decided by a {@link Pacer}, until they run
+ * out, a deadline passes, or the workload is stopped. Operations already issued are always completed (or time out in
+ * the engine) before {@link #execute()} returns. Operations that started behind the pacer's schedule (usually because
+ * the engine's concurrency was exhausted, blocking submission) are counted, and logged at the end.
+ */
+public abstract class Workload {
+    private static final Logger LOG = LoggerFactory.getLogger(Workload.class);
+
+    protected final Engine engine;
+    protected final Pacer pacer;
+    private long deadlineNanos;
+    private boolean hasDeadline;
+    private volatile boolean stopped;
+
+    protected Workload(Engine engine, Pacer pacer) {
+        this.engine = checkNotNull(engine);
+        this.pacer = checkNotNull(pacer);
+    }
+
+    /** Returns the total number of operations in this workload. */
+    protected abstract long count();
+
+    /**
+     * Issues the operation with the given sequence number to the engine.
+     *
+     * @param sequence
+     *            a number from 0 (inclusive) to {@link #count()} (exclusive)
+     * @param intendedStartNanos
+     *            the time the operation was scheduled to start at; latencies are measured from here
+     */
+    protected abstract void issue(long sequence, long intendedStartNanos);
+
+    /** Stops issuing operations once {@link System#nanoTime()} reaches {@code deadlineNanos}. */
+    public Workload until(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = true;
+        return this;
+    }
+
+    /** Stops issuing operations (from any thread); {@link #execute()} then waits for those in flight. */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    public void execute() {
+        long count = count();
+        long issued = 0;
+        long blockedNanos = 0;
+        while (issued < count && !this.stopped) {
+            long start = this.pacer.acquire();
+            if (this.hasDeadline && start - this.deadlineNanos >= 0) {
+                break;
+            }
+            long submitted = System.nanoTime();
+            issue(issued++, start);
+            blockedNanos += System.nanoTime() - submitted;
+        }
+        if (issued == count) {
+            LOG.info("All {} operations enqueued; Shutting down...", count);
+        }
+        else {
+            String reason = this.stopped ? "being stopped" : "the deadline";
+            LOG.info("{} operations enqueued before {}; Shutting down...", issued, reason);
+        }
+        long late = this.pacer.late();
+        if (late > 0) {
+            LOG.warn(
+                    "{} of {} operations started more than {}ms behind schedule, so the rate was not kept; issuing "
+                            + "them took {}s in all, blocked by the engine once its --concurrency was exhausted (it "
+                            + "needs to be at least the rate times the latency, in seconds), or short of CPU",
+                    late,
+                    issued,
+                    TimeUnit.NANOSECONDS.toMillis(Pacer.LATE_NANOS),
+                    String.format("%.1f", blockedNanos / 1e9));
+        }
+        this.engine.close();
+
+        int abandoned = this.engine.inFlight();
+        checkState(abandoned == 0, "Gave up waiting for %s in-flight operations; results are incomplete", abandoned);
+    }
+
+}
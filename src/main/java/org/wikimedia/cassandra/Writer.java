@@ -1,145 +1,157 @@
 package org.wikimedia.cassandra;
 
 import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static org.wikimedia.cassandra.CassandraSession.KEYSPACE;
-import static org.wikimedia.cassandra.CassandraSession.TABLE;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.codahale.metrics.Gauge;
-import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.Statement;
-import com.datastax.driver.core.exceptions.NoHostAvailableException;
-import com.datastax.driver.core.exceptions.QueryExecutionException;
 import com.github.rvesse.airline.annotations.Command;
 
 @Command(name = "write", description = "Write data")
-public class Writer {
-    private static final String QUERY = String
-            .format("INSERT INTO %s.%s (key,rev,tid,value) VALUES (?,?,now(),?) USING TTL ?", KEYSPACE, TABLE);
+public class Writer extends Workload {
     private static final Logger LOG = LoggerFactory.getLogger(Writer.class);
+    /** Draws of a skewed key distribution to make before taking the next partition with revisions left to write. */
+    private static final int MAX_DRAWS = 16;
 
-    private final CassandraSession session;
-    private final int concurrency;
+    private final Storage storage;
     private final int numPartitions;
     private final int partitionStart;
-    private final int numRevisions;
     private final int revisionStart;
     private final int numRenders;
-    private final int queueSize;
-    private final PreparedStatement prepared;
-    private final ByteBuffer value;
-    private final ExecutorService executor;
-    private final Meter attempts;
-    private final Meter failures;
+    private final Distribution keys;
+    private final AtomicIntegerArray written;
+    private final ValueGenerator values;
+    private final TtlPolicy ttls;
+    private final int batchRows;
+    private final long batchBytes;
+    private final int rowsPerOperation;
+    private final long rowsPerPartition;
+    private final OperationMetrics stats;
+    private final OperationMetrics batchStats;
 
     public Writer(
             MetricRegistry metrics,
-            CassandraSession session,
-            int concurrency,
-            int numPartitions,
+            Storage storage,
+            Engine engine,
+            Pacer pacer,
+            Distribution keys,
             int partOffset,
             int numRevisions,
             int revOffset,
-            int numRenders) throws IOException {
-        this.session = checkNotNull(session);
-        this.concurrency = concurrency;
-        this.numPartitions = numPartitions;
+            int numRenders,
+            ValueGenerator values,
+            TtlPolicy ttls,
+            int batchRows,
+            long batchBytes,
+            int batchRevisions) {
+        super(engine, pacer);
+        this.storage = checkNotNull(storage);
+        this.numPartitions = keys.size();
         this.partitionStart = partOffset;
-        this.numRevisions = numRevisions;
         this.revisionStart = revOffset;
         this.numRenders = numRenders;
+        this.keys = keys;
+        this.values = checkNotNull(values);
+        this.ttls = checkNotNull(ttls);
+        this.written = new AtomicIntegerArray(this.numPartitions);
+
+        // When batching, each operation writes every render of one or more consecutive revisions of a partition
+        checkArgument(batchRevisions <= 1 || batchRows != 1, "Batching revisions requires --batch-rows other than 1");
+        this.batchRows = batchRows > 0 ? batchRows : Integer.MAX_VALUE;
+        this.batchBytes = batchBytes > 0 ? batchBytes : Long.MAX_VALUE;
+        this.rowsPerOperation = batchRows != 1 ? numRenders * Math.max(1, batchRevisions) : 1;
+        // Each partition's revisions, rounded up to a whole operation (0, unlimited, when there are no revisions)
+        long rows = (long) numRevisions * numRenders;
+        this.rowsPerPartition = (rows + this.rowsPerOperation - 1) / this.rowsPerOperation * this.rowsPerOperation;
+
+        this.stats = new OperationMetrics(metrics, name(Writer.class, "inserts"), LOG);
+        this.batchStats = new OperationMetrics(metrics, name(Writer.class, "batches"), LOG);
+    }
 
-        this.queueSize = this.concurrency * 2;
-        this.prepared = session.prepare(QUERY);
-        this.attempts = metrics.meter(name(Writer.class, "inserts", "attempted"));
-        this.failures = metrics.meter(name(Writer.class, "inserts", "failed"));
+    /** Returns the operations that write every partition's revisions, each rounded up to a whole operation. */
+    @Override
+    protected long count() {
+        return this.numPartitions * (this.rowsPerPartition / this.rowsPerOperation);
+    }
 
-        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(this.queueSize);
+    @Override
+    protected void issue(long sequence, long intendedStartNanos) {
+        // Each partition's renders and revisions are written in order, however often the partition is selected; with
+        // sequential keys, every partition gets render j of revision i before any partition gets render j+1.
+        final int partition = partition();
+        final int written = this.written.getAndAdd(partition, this.rowsPerOperation);
+        final String key = keyName(this.partitionStart + partition);
+
+        if (this.rowsPerOperation == 1) {
+            final int rev = this.revisionStart + written / this.numRenders;
+            final Cell cell = new Cell(key, rev, null, this.values.next(), ttl(written % this.numRenders));
+            this.engine.submit(key, () -> this.storage.write(cell), this.stats.since(intendedStartNanos));
+            return;
+        }
 
-        metrics.register(name(Writer.class, "inserts", "enqueued"), new Gauge<Integer>() {
-            @Override
-            public Integer getValue() {
-                return queue.size();
+        List<Cell> batch = new ArrayList<>();
+        long bytes = 0;
+        for (int i = written; i < (written + this.rowsPerOperation); i++) {
+            ByteBuffer value = this.values.next();
+            if (batch.size() > 0 && (batch.size() >= this.batchRows || bytes + value.remaining() > this.batchBytes)) {
+                submit(key, batch, intendedStartNanos);
+                batch = new ArrayList<>();
+                bytes = 0;
             }
-        });
-
-        this.executor = new ThreadPoolExecutor(
-                this.concurrency,
-                this.concurrency,
-                30,
-                TimeUnit.SECONDS,
-                queue,
-                new ThreadPoolExecutor.CallerRunsPolicy());
-
-        // Read in sample data
-        this.value = bytes(getClass().getResourceAsStream("/foobar.html"));
+            int rev = this.revisionStart + i / this.numRenders;
+            batch.add(new Cell(key, rev, null, value, ttl(i % this.numRenders)));
+            bytes += value.remaining();
+        }
+        submit(key, batch, intendedStartNanos);
     }
 
-    public void execute() {
-        for (int i = this.revisionStart; i < (this.numRevisions + this.revisionStart); i++) {
-            for (int j = 0; j < this.numRenders; j++) {
-                for (int k = this.partitionStart; k < (this.numPartitions + this.partitionStart); k++) {
-                    final String key = keyName(k);
-                    final int rev = i;
-                    final int ttl = j < (this.numRenders - 1) ? 60 : 0; // FIXME: maybe not hard-code TTL?
-                    executor.submit(() -> {
-                        Statement statement = null;
-                        try {
-                            statement = this.prepared.bind(key, rev, value, ttl);
-                            this.session.execute(statement);
-                            this.attempts.mark();
-                        }
-                        catch (NoHostAvailableException | QueryExecutionException e) {
-                            LOG.warn(e.getMessage());
-                            this.failures.mark();
-                        }
-                        catch (Exception e) {
-                            LOG.error("Unable to execute statement: \"{}\"", statement, e);
-                            this.failures.mark();
-                        }
-                    });
+    /**
+     * Returns a partition with revisions left to write: a skewed distribution's hottest partitions fill up first, and
+     * then keys are drawn again, or after {@link #MAX_DRAWS}, the next partition with room is taken. Operations are
+     * issued by one thread, so a partition is never written past its revisions.
+     */
+    private int partition() {
+        int partition = this.keys.next();
+        if (this.rowsPerPartition == 0) {
+            return partition;
+        }
+        for (int draws = 1; this.written.get(partition) >= this.rowsPerPartition; draws++) {
+            if (draws < MAX_DRAWS) {
+                partition = this.keys.next();
+                continue;
+            }
+            for (int i = 1; i <= this.numPartitions; i++) {
+                int next = (partition + i) % this.numPartitions;
+                if (this.written.get(next) < this.rowsPerPartition) {
+                    return next;
                 }
             }
+            throw new IllegalStateException("Every partition has all of its revisions written");
         }
-        LOG.info("All inserts enqueued; Shutting down...");
-        executor.shutdown();
+        return partition;
+    }
 
-        try {
-            // Block until any jobs on the queue have completed, or the timeout has expired.
-            if (!executor.awaitTermination(Math.max(this.queueSize, 180), TimeUnit.SECONDS)) {
-                LOG.warn("Timed out waiting for executor shutdown!");
-            }
-        }
-        catch (InterruptedException e) {
-            LOG.warn("Interrupted while waiting for executor shutdown", e);
-        }
+    private void submit(String key, List<Cell> batch, long intendedStartNanos) {
+        this.engine.submit(
+                key,
+                () -> this.storage.write(batch),
+                this.batchStats.since(intendedStartNanos, this.stats, batch.size()));
     }
 
-    static String keyName(int sequence) {
-        return String.format("key_%d", sequence);
+    private int ttl(int render) {
+        return this.ttls.ttl(render, this.numRenders);
     }
 
-    static ByteBuffer bytes(InputStream input) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        byte[] buff = new byte[1024];
-        int length;
-        while ((length = input.read(buff)) != -1)
-            output.write(buff, 0, length);
-        return ByteBuffer.wrap(output.toByteArray());
+    static String keyName(int sequence) {
+        return "key_" + sequence;
     }
+
 }
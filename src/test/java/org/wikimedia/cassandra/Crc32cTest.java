@@ -0,0 +1,62 @@
+package org.wikimedia.cassandra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Crc32cTest {
+    /** The standard check value: CRC32C("123456789"). */
+    private static final int CHECK = 0xe3069283;
+    private static final byte[] DIGITS = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void tableMatchesCheckValue() {
+        assertEquals(CHECK, new Crc32c.Table().update(ByteBuffer.wrap(DIGITS)).value());
+    }
+
+    @Test
+    public void jdkMatchesCheckValue() {
+        assertEquals(CHECK, new Crc32c.Jdk().update(ByteBuffer.wrap(DIGITS)).value());
+    }
+
+    @Test
+    public void directBuffersAndUpdatesInParts() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(DIGITS.length);
+        direct.put(DIGITS).flip();
+        assertEquals(CHECK, new Crc32c.Table().update(direct).value());
+        assertEquals(CHECK, new Crc32c.Jdk().update(direct).value());
+        // Neither changes the buffer's position
+        assertEquals(0, direct.position());
+
+        ByteBuffer head = ByteBuffer.wrap(DIGITS, 0, 4);
+        ByteBuffer tail = ByteBuffer.wrap(DIGITS, 4, 5);
+        assertEquals(CHECK, new Crc32c.Table().update(head).update(tail).value());
+        assertEquals(CHECK, new Crc32c.Jdk().update(head).update(tail).value());
+    }
+
+    @Test
+    public void implementationsAgree() {
+        // Lengths on either side of the 8-byte words of the table's inner loop, at unaligned offsets
+        Random random = new Random(0);
+        byte[] bytes = new byte[1031];
+        random.nextBytes(bytes);
+        Crc32c table = new Crc32c.Table();
+        Crc32c jdk = new Crc32c.Jdk();
+        for (int length = 0; length < 40; length++) {
+            for (int offset = 0; offset < 8; offset++) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                table.reset();
+                jdk.reset();
+                assertEquals(jdk.update(buffer).value(), table.update(buffer).value());
+            }
+        }
+        table.reset();
+        jdk.reset();
+        assertEquals(jdk.update(ByteBuffer.wrap(bytes)).value(), table.update(ByteBuffer.wrap(bytes)).value());
+    }
+
+}
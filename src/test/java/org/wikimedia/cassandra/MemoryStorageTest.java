@@ -0,0 +1,183 @@
+package org.wikimedia.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.utils.UUIDs;
+
+public class MemoryStorageTest {
+    private static final String KEY = "key_0";
+
+    private MemoryStorage storage;
+    /** The tids of revision {@code r}'s renders, oldest first: {@code tids[r - 1]}. */
+    private UUID[][] tids;
+
+    @Before
+    public void setUp() throws Exception {
+        this.storage = new MemoryStorage();
+        // Three revisions of three renders each, written out of order
+        this.tids = new UUID[3][3];
+        for (UUID[] renders : this.tids) {
+            for (int i = 0; i < renders.length; i++) {
+                renders[i] = UUIDs.timeBased();
+            }
+        }
+        for (int render : new int[] { 1, 0, 2 }) {
+            for (int rev : new int[] { 2, 3, 1 }) {
+                write(rev, this.tids[rev - 1][render], 0);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        this.storage.close();
+    }
+
+    @Test
+    public void readsInClusteringOrder() throws Exception {
+        List<Cell> cells = readAll(new Slice(KEY));
+        assertEquals(9, cells.size());
+        for (int i = 0; i < cells.size(); i++) {
+            int rev = 3 - i / 3;
+            assertEquals(rev, cells.get(i).rev());
+            assertEquals(this.tids[rev - 1][2 - i % 3], cells.get(i).tid());
+            assertEquals(rev, cells.get(i).value().getInt(0));
+        }
+    }
+
+    @Test
+    public void pagesThroughSlices() throws Exception {
+        Storage.Page page = this.storage.read(new Slice(KEY).fetchSize(4)).get();
+        assertEquals(4, page.cells().size());
+        assertFalse(page.isLast());
+        page = page.next().get();
+        assertEquals(4, page.cells().size());
+        assertEquals(2, page.cells().get(0).rev());
+        assertEquals(this.tids[1][1], page.cells().get(0).tid());
+        page = page.next().get();
+        assertEquals(1, page.cells().size());
+        assertTrue(page.isLast());
+    }
+
+    @Test
+    public void readsRendersBeforeTidWithLimit() throws Exception {
+        List<Cell> cells = readAll(new Slice(KEY).rev(2).tidBefore(this.tids[1][2]).limit(1));
+        assertEquals(Arrays.asList(this.tids[1][1]), tids(cells));
+
+        cells = readAll(new Slice(KEY).rev(2).tidBefore(this.tids[1][2]).limit(5).fetchSize(1));
+        assertEquals(Arrays.asList(this.tids[1][1], this.tids[1][0]), tids(cells));
+
+        assertEquals(0, readAll(new Slice(KEY).rev(2).tidBefore(this.tids[1][0])).size());
+    }
+
+    @Test
+    public void readsRevisionsBeforeWithLimit() throws Exception {
+        List<Cell> cells = readAll(new Slice(KEY).revBefore(3).limit(4).fetchSize(3));
+        assertEquals(4, cells.size());
+        assertEquals(2, cells.get(0).rev());
+        assertEquals(1, cells.get(3).rev());
+    }
+
+    @Test
+    public void readsLatestRenderOfEachRevision() throws Exception {
+        List<Cell> cells = readAll(new Slice(KEY).latestRenders().limit(2).fetchSize(1));
+        assertEquals(Arrays.asList(this.tids[2][2], this.tids[1][2]), tids(cells));
+        assertEquals(3, readAll(new Slice(KEY).latestRenders()).size());
+    }
+
+    @Test
+    public void readsOnlyKeysAndTtlsWithoutValues() throws Exception {
+        write(4, UUIDs.timeBased(), 3600);
+        Cell cell = this.storage.read(new Slice(KEY).limit(1).withoutValues()).get().cells().get(0);
+        assertEquals(null, cell.value());
+        assertTrue(cell.ttl() > 3590 && cell.ttl() <= 3600);
+    }
+
+    @Test
+    public void expiresCellsAfterTheirTtl() throws Exception {
+        UUID tid = UUIDs.timeBased();
+        write(4, tid, 1);
+        assertEquals(tid, this.storage.read(new Slice(KEY).limit(1)).get().cells().get(0).tid());
+
+        Thread.sleep(1100);
+        Storage.Page page = this.storage.read(new Slice(KEY).rev(4).traced()).get();
+        assertEquals(0, page.cells().size());
+        // Expired cells are read as tombstones, until gc_grace_seconds have passed
+        assertEquals(1, page.trace().tombstones);
+        assertEquals(3, this.storage.read(new Slice(KEY).limit(1)).get().cells().get(0).rev());
+    }
+
+    @Test
+    public void deletesRowsWithRowTombstones() throws Exception {
+        this.storage.delete(new Slice(KEY).rev(2).tid(this.tids[1][2])).get();
+        Storage.Page page = this.storage.read(new Slice(KEY).rev(2).traced()).get();
+        assertEquals(Arrays.asList(this.tids[1][1], this.tids[1][0]), tids(page.cells()));
+        assertEquals(2, page.trace().live);
+        assertEquals(1, page.trace().tombstones);
+
+        // A later write of the same row wins
+        write(2, this.tids[1][2], 0);
+        assertEquals(3, readAll(new Slice(KEY).rev(2)).size());
+    }
+
+    @Test
+    public void deletesRangesWithRangeTombstones() throws Exception {
+        this.storage.delete(new Slice(KEY).revBefore(3)).get();
+        this.storage.delete(new Slice(KEY).rev(3).tidBefore(this.tids[2][2])).get();
+
+        Storage.Page page = this.storage.read(new Slice(KEY).traced()).get();
+        assertEquals(Arrays.asList(this.tids[2][2]), tids(page.cells()));
+        assertEquals(2, page.trace().tombstones);
+        assertEquals(0, readAll(new Slice(KEY).rev(2)).size());
+
+        // Only data older than the tombstone is shadowed
+        UUID tid = UUIDs.timeBased();
+        write(1, tid, 0);
+        assertEquals(Arrays.asList(tid), tids(readAll(new Slice(KEY).revBefore(3))));
+    }
+
+    @Test
+    public void readsNothingOfMissingPartitions() throws Exception {
+        Storage.Page page = this.storage.read(new Slice("key_1")).get();
+        assertEquals(0, page.cells().size());
+        assertTrue(page.isLast());
+    }
+
+    private void write(int rev, UUID tid, int ttl) throws Exception {
+        ByteBuffer value = ByteBuffer.allocate(4);
+        value.putInt(0, rev);
+        this.storage.write(new Cell(KEY, rev, tid, value, ttl)).get();
+    }
+
+    private List<Cell> readAll(Slice slice) throws Exception {
+        List<Cell> cells = new ArrayList<>();
+        Storage.Page page = this.storage.read(slice).get();
+        cells.addAll(page.cells());
+        while (!page.isLast()) {
+            page = page.next().get();
+            cells.addAll(page.cells());
+        }
+        return cells;
+    }
+
+    private static List<UUID> tids(List<Cell> cells) {
+        List<UUID> tids = new ArrayList<>();
+        for (Cell cell : cells) {
+            tids.add(cell.tid());
+        }
+        return tids;
+    }
+
+}
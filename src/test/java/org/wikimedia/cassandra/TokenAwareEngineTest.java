@@ -0,0 +1,166 @@
+package org.wikimedia.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TokenAwareEngineTest {
+    private static final TokenRing RING = TokenRing.simulated(3, 16, 0);
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    /** Keys of the ring's partitions, by owner. */
+    private final Map<String, List<String>> keys = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 1000; i++) {
+            String key = Writer.keyName(i);
+            this.keys.computeIfAbsent(RING.owner(key), owner -> new ArrayList<>()).add(key);
+        }
+    }
+
+    @Test
+    public void ringAssignsEveryNodeSomeKeys() {
+        assertEquals(3, this.keys.size());
+        for (String node : new String[] { "node1", "node2", "node3" }) {
+            assertTrue(this.keys.get(node).size() > 100);
+        }
+        // Deterministic, given the seed
+        assertEquals(RING.owner("key_0"), TokenRing.simulated(3, 16, 0).owner("key_0"));
+    }
+
+    @Test
+    public void capsRequestsInFlightToEachHost() {
+        TokenAwareEngine engine = new TokenAwareEngine(this.metrics, "test", 10, RING, 2);
+        List<SettableFuture<Void>> node1 = submit(engine, this.keys.get("node1"), 4);
+        List<SettableFuture<Void>> node2 = submit(engine, this.keys.get("node2"), 1);
+
+        // node1 has two in flight and two queued, without holding up node2
+        assertEquals(2, gauge("test.hosts.node1.inflight"));
+        assertEquals(2, gauge("test.hosts.node1.queued"));
+        assertEquals(1, gauge("test.hosts.node2.inflight"));
+        assertEquals(5, engine.inFlight());
+
+        // Completing a request dispatches the next queued for its host
+        node1.get(0).set(null);
+        assertEquals(2, gauge("test.hosts.node1.inflight"));
+        assertEquals(1, gauge("test.hosts.node1.queued"));
+        node1.get(1).setException(new RuntimeException("test"));
+        node1.get(2).set(null);
+        node1.get(3).set(null);
+        node2.get(0).set(null);
+
+        assertEquals(0, engine.inFlight());
+        assertEquals(4, this.succeeded.get());
+        assertEquals(1, this.failed.get());
+        assertEquals(3L, this.metrics.meter("test.hosts.node1.completed").getCount());
+        assertEquals(1L, this.metrics.meter("test.hosts.node1.failed").getCount());
+        engine.close();
+    }
+
+    @Test
+    public void capsRequestsInFlightOverall() {
+        TokenAwareEngine engine = new TokenAwareEngine(this.metrics, "test", 2, RING, 2);
+        List<SettableFuture<Void>> node1 = submit(engine, this.keys.get("node1"), 1);
+        List<SettableFuture<Void>> node2 = submit(engine, this.keys.get("node2"), 1);
+
+        Thread blocked = new Thread(() -> submit(engine, this.keys.get("node3"), 1));
+        blocked.start();
+        assertStillBlocked(blocked);
+
+        // The third request is dispatched once a permit is returned
+        node1.get(0).set(null);
+        assertFinishes(blocked);
+        node2.get(0).set(null);
+        assertEquals(1, engine.inFlight());
+    }
+
+    @Test
+    public void blocksCallerWhileHostQueueIsFull() throws Exception {
+        TokenAwareEngine engine = new TokenAwareEngine(this.metrics, "test", 10, RING, 1);
+        List<SettableFuture<Void>> node1 = submit(engine, this.keys.get("node1"), 2);
+
+        // One in flight and one queued fill node1; the next caller waits, but others are not held up
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread blocked = new Thread(() -> {
+            node1.addAll(submit(engine, this.keys.get("node1").subList(2, 3), 1));
+            submitted.countDown();
+        });
+        blocked.start();
+        assertStillBlocked(blocked);
+        submit(engine, this.keys.get("node2"), 1).get(0).set(null);
+        assertEquals(1, submitted.getCount());
+
+        node1.get(0).set(null);
+        assertFinishes(blocked);
+        assertEquals(1, gauge("test.hosts.node1.inflight"));
+        assertEquals(1, gauge("test.hosts.node1.queued"));
+        node1.get(1).set(null);
+        node1.get(2).set(null);
+        assertEquals(0, engine.inFlight());
+        assertEquals(4, this.succeeded.get());
+    }
+
+    /** Submits a request for each of the first {@code count} keys, returning their (incomplete) futures. */
+    private List<SettableFuture<Void>> submit(Engine engine, List<String> keys, int count) {
+        List<SettableFuture<Void>> futures = new ArrayList<>();
+        for (String key : keys.subList(0, count)) {
+            SettableFuture<Void> future = SettableFuture.create();
+            futures.add(future);
+            engine.submit(key, () -> future, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    succeeded.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failed.incrementAndGet();
+                }
+            });
+        }
+        return futures;
+    }
+
+    private int gauge(String name) {
+        return (Integer) this.metrics.getGauges().get(name).getValue();
+    }
+
+    private static void assertStillBlocked(Thread thread) {
+        try {
+            thread.join(200);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertTrue(thread.isAlive());
+    }
+
+    private static void assertFinishes(Thread thread) {
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertFalse(thread.isAlive());
+    }
+
+}
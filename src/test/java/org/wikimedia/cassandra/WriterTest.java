@@ -0,0 +1,92 @@
+package org.wikimedia.cassandra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class WriterTest {
+
+    @Test
+    public void countsOneOperationPerRow() throws IOException {
+        assertEquals(1000L * 10000 * 10, writer(1000, 10000, 10, 1, 1).count());
+    }
+
+    @Test
+    public void countsOneBatchPerRevision() throws IOException {
+        assertEquals(1000L * 10000, writer(1000, 10000, 10, 0, 1).count());
+        // Batches of rows are split by --batch-rows, but counted as one operation
+        assertEquals(1000L * 10000, writer(1000, 10000, 10, 3, 1).count());
+    }
+
+    @Test
+    public void roundsRevisionsUpToWholeBatches() throws IOException {
+        // ceil(10 / 3) batches per partition
+        assertEquals(2 * 4, writer(2, 10, 10, 0, 3).count());
+        assertEquals(2 * 5, writer(2, 10, 10, 0, 2).count());
+    }
+
+    @Test
+    public void countsNothingWithoutRevisions() throws IOException {
+        assertEquals(0, writer(1000, 0, 10, 1, 1).count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBatchedRevisionsWithoutBatches() throws IOException {
+        writer(2, 10, 10, 1, 3);
+    }
+
+    @Test
+    public void writesEveryRevisionOfEveryPartition() throws Exception {
+        // However skewed the keys, each partition gets its revisions and no more
+        MetricRegistry metrics = new MetricRegistry();
+        try (MemoryStorage storage = new MemoryStorage();
+                Engine engine = Engine.create(Engine.Type.ASYNC, metrics, "test", 8)) {
+            Writer writer = new Writer(
+                    metrics,
+                    storage,
+                    engine,
+                    Pacer.unthrottled(),
+                    Distribution.parse("zipf:1.5", 20),
+                    0,
+                    7,
+                    0,
+                    3,
+                    ValueGenerator.sample(),
+                    new TtlPolicy(0, 0),
+                    1,
+                    0,
+                    1);
+            writer.execute();
+            for (int partition = 0; partition < 20; partition++) {
+                Storage.Page page = storage.read(new Slice(Writer.keyName(partition))).get();
+                assertEquals(7 * 3, page.cells().size());
+                assertEquals(6, page.cells().get(0).rev());
+            }
+        }
+    }
+
+    private static Writer writer(int partitions, int revisions, int renders, int batchRows, int batchRevisions)
+            throws IOException {
+        MetricRegistry metrics = new MetricRegistry();
+        return new Writer(
+                metrics,
+                new MemoryStorage(),
+                Engine.create(Engine.Type.ASYNC, metrics, "test", 1),
+                Pacer.unthrottled(),
+                Distribution.parse("sequential", partitions),
+                0,
+                revisions,
+                0,
+                renders,
+                ValueGenerator.sample(),
+                new TtlPolicy(0, 0),
+                batchRows,
+                0,
+                batchRevisions);
+    }
+
+}